@@ -0,0 +1,293 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Background repair between replicas: keeps a {@link MerkleTree} per key range this node replicates, updated on every
+ * local write, and periodically compares them with the other replicas of those ranges. Only the hashes are kept in
+ * memory, the rows of a leaf are read from SQLite when they are exchanged. Only the roots are sent while
+ * replicas agree; a difference is narrowed down one level per round trip and only the rows of differing leaves are
+ * exchanged, both ways, each side keeping the newer version. The first round runs at start and repairs whatever
+ * the watermark based catch-up of a restarted node missed, e.g. writes that never reached the peers.
+ */
+class AntiEntropy implements Runnable {
+    private static final String TAG = AntiEntropy.class.getName();
+    private static final long INTERVAL = 30 * 1000; // ms
+
+    private final Dynamo dynamo;
+    private final SimpleDynamoDB db;
+    private final String myPort;
+    private Trees trees; // guarded by this, up to date
+    private Trees building; // guarded by this, being built
+    private final Object buildLock = new Object(); // one build at a time
+
+    public AntiEntropy(Dynamo dynamo, SimpleDynamoDB db, String myPort) {
+        this.dynamo = dynamo;
+        this.db = db;
+        this.myPort = myPort;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "AntiEntropy");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * The row of key changed from oldVersion to newVersion, 0 for no row. Called inside the write's transaction,
+     * and never holds this monitor while reading the table, which would wait for that transaction.
+     */
+    public synchronized void written(String key, long oldVersion, long newVersion) {
+        if (trees != null && trees.table == DynamoRing.table()) {
+            MerkleTree tree = trees.byRange.get(trees.table.range(key));
+            if (tree != null) {
+                tree.update(key, oldVersion, newVersion);
+            }
+        } else if (building != null) {
+            // the build may or may not have read the row, it reads the leaf again
+            MerkleTree tree = building.byRange.get(building.table.range(key));
+            if (tree != null) {
+                tree.written(key);
+            }
+        }
+        // no trees at all: the next build reads the row
+    }
+
+    public synchronized void cleared() {
+        trees = null;
+        building = null;
+    }
+
+    /**
+     * The trees of the current ring. They are built with the only full scan, at start and after a membership change
+     * since ranges and their replicas move, outside this monitor so writes do not wait for it.
+     */
+    private Trees trees() {
+        synchronized (this) {
+            if (trees != null && trees.table == DynamoRing.table()) {
+                return trees;
+            }
+        }
+        synchronized (buildLock) {
+            return build();
+        }
+    }
+
+    private Trees build() {
+        while (true) {
+            Trees built;
+            synchronized (this) {
+                DynamoRing.Table table = DynamoRing.table();
+                if (trees != null && trees.table == table) {
+                    return trees; // built while waiting for the lock
+                }
+                built = new Trees(table, myPort);
+                building = built;
+            }
+            long start = System.nanoTime();
+            int rows = 0;
+            try (Cursor cursor = db.all()) {
+                while (cursor.moveToNext()) {
+                    MerkleTree tree = built.byRange.get(built.table.range(cursor.getString(0)));
+                    if (tree != null) {
+                        tree.update(cursor.getString(0), 0, cursor.getLong(2));
+                    }
+                    rows++;
+                }
+            }
+            // the leaves written meanwhile are read again until none is left, then writes update the trees
+            while (true) {
+                refresh(built);
+                synchronized (this) {
+                    if (building != built) {
+                        break; // cleared or superseded, build again
+                    }
+                    if (!built.isDirty()) {
+                        trees = built;
+                        building = null;
+                        Log.d(TAG, "Built merkle trees of " + rows + " rows in " + (System.nanoTime() - start) / 1000000 + "ms");
+                        return built;
+                    }
+                }
+            }
+        }
+    }
+
+    // recomputes the dirty leaves, each read once for all ranges.
+    private void refresh(Trees trees) {
+        BitSet leaves = new BitSet(MerkleTree.LEAVES);
+        for (MerkleTree tree : trees.byRange.values()) {
+            for (int leaf : tree.takeDirty()) {
+                leaves.set(leaf);
+            }
+        }
+        for (int leaf = leaves.nextSetBit(0); leaf >= 0; leaf = leaves.nextSetBit(leaf + 1)) {
+            Map<Integer, Long> hashes = new HashMap<>(); // <range, hash>
+            try (Cursor cursor = db.leaf(leaf)) {
+                while (cursor.moveToNext()) {
+                    int range = trees.table.range(cursor.getString(0));
+                    Long hash = hashes.get(range);
+                    hashes.put(range, (hash == null ? 0 : hash) ^ MerkleTree.hash(cursor.getString(0), cursor.getLong(2)));
+                }
+            }
+            for (Map.Entry<Integer, MerkleTree> entry : trees.byRange.entrySet()) {
+                Long hash = hashes.get(entry.getKey());
+                entry.getValue().setLeaf(leaf, hash == null ? 0 : hash);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        trees();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                repair(DynamoRing.liveNodes(DynamoRing.recoveryNodes(myPort)));
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "AntiEntropy interrupted");
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "AntiEntropy Exception", e);
+            }
+        }
+    }
+
+    /**
+     * Starts a comparison with each peer: sends the roots of the ranges both replicate.
+     */
+    public void repair(List<String> peers) {
+        Trees trees = trees();
+        for (String peer : peers) {
+            Map<String, Payload.Value> roots = new HashMap<>();
+            for (Map.Entry<Integer, MerkleTree> entry : trees.byRange.entrySet()) {
+                if (trees.table.preferenceList(entry.getKey()).contains(peer)) {
+                    roots.put(id(entry.getKey(), 0, 0), new Payload.Value(null, entry.getValue().hash(0, 0)));
+                }
+            }
+            if (!roots.isEmpty()) {
+                dynamo.sendTo(peer, Payload.merkle(myPort, trees.table.epoch(), roots));
+            }
+        }
+    }
+
+    public void handle(Payload payload) {
+        switch (payload.getMessageType()) {
+            case MERKLE: {
+                compare(payload);
+                break;
+            }
+            case MERKLE_SYNC: {
+                // rows to send back are read before merging theirs, which they already have.
+                Map<String, Payload.Value> rows = payload.isAck() ? rows(payload.getValue()) : null;
+                dynamo.merge(payload.getQueryResults());
+                Log.d(TAG, "MERKLE_SYNC merged " + payload.getQueryResults().size() + " rows from " + payload.getFromPort());
+                if (rows != null) {
+                    dynamo.reply(payload, Payload.merkleSync(myPort, payload.getValue(), rows));
+                }
+                break;
+            }
+        }
+    }
+
+    // answers each differing inner node with our hashes of its children, and differing leaves with our rows.
+    private void compare(Payload payload) {
+        Trees trees = trees();
+        if (payload.getVersion() != trees.table.epoch()) {
+            Log.d(TAG, "MERKLE for epoch " + payload.getVersion() + " ignored, at " + trees.table.epoch());
+            return;
+        }
+        Map<String, Payload.Value> children = new HashMap<>();
+        StringBuilder leaves = new StringBuilder();
+        for (Map.Entry<String, Payload.Value> entry : payload.getQueryResults().entrySet()) {
+            String[] id = entry.getKey().split("/");
+            int range = Integer.parseInt(id[0]);
+            int level = Integer.parseInt(id[1]);
+            int index = Integer.parseInt(id[2]);
+            MerkleTree tree = trees.byRange.get(range);
+            if (tree == null || tree.hash(level, index) == entry.getValue().getVersion()) {
+                continue;
+            }
+            if (level < MerkleTree.LEAF_LEVEL) {
+                for (int child = index * MerkleTree.FANOUT; child < (index + 1) * MerkleTree.FANOUT; child++) {
+                    children.put(id(range, level + 1, child), new Payload.Value(null, tree.hash(level + 1, child)));
+                }
+            } else {
+                leaves.append(leaves.length() == 0 ? "" : ",").append(range).append('/').append(index);
+            }
+        }
+        if (!children.isEmpty()) {
+            dynamo.reply(payload, Payload.merkle(myPort, trees.table.epoch(), children));
+        }
+        if (leaves.length() > 0) {
+            Log.d(TAG, "Leaves differing from " + payload.getFromPort() + ": " + leaves);
+            dynamo.reply(payload, Payload.merkleSync(myPort, leaves.toString(), rows(leaves.toString())).ack(true));
+        }
+    }
+
+    // local rows of the given "range/leaf" list, deleted keys included.
+    private Map<String, Payload.Value> rows(String leaves) {
+        Trees trees = trees();
+        Map<Integer, Set<Integer>> ranges = new HashMap<>(); // <leaf, ranges>, each leaf is read once
+        for (String leaf : leaves.split(",")) {
+            String[] id = leaf.split("/");
+            int range = Integer.parseInt(id[0]);
+            if (!trees.byRange.containsKey(range)) {
+                continue;
+            }
+            Set<Integer> leafRanges = ranges.get(Integer.parseInt(id[1]));
+            if (leafRanges == null) {
+                leafRanges = new HashSet<>();
+                ranges.put(Integer.parseInt(id[1]), leafRanges);
+            }
+            leafRanges.add(range);
+        }
+        Map<String, Payload.Value> rows = new HashMap<>();
+        for (Map.Entry<Integer, Set<Integer>> entry : ranges.entrySet()) {
+            try (Cursor cursor = db.leaf(entry.getKey())) {
+                while (cursor.moveToNext()) {
+                    if (entry.getValue().contains(trees.table.range(cursor.getString(0)))) {
+                        rows.put(cursor.getString(0), new Payload.Value(cursor.getString(1), cursor.getLong(2)));
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static String id(int range, int level, int index) {
+        return range + "/" + level + "/" + index;
+    }
+
+    private static class Trees {
+        private final DynamoRing.Table table;
+        private final Map<Integer, MerkleTree> byRange = new HashMap<>(); // ranges replicated by this node
+
+        private Trees(DynamoRing.Table table, String myPort) {
+            this.table = table;
+            for (int range = 0; range < table.ranges(); range++) {
+                if (table.preferenceList(range).contains(myPort)) {
+                    byRange.put(range, new MerkleTree());
+                }
+            }
+        }
+
+        private boolean isDirty() {
+            for (MerkleTree tree : byRange.values()) {
+                if (tree.isDirty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Keeps long-lived sockets to the other nodes, so a message does not pay for a TCP handshake.
+ * Callers {@link #acquire(String)} a connection, write to it and {@link #release(Connection)} it,
+ * or {@link #invalidate(Connection)} it if the write failed.
+ * <p>
+ * Connections are full-duplex: peers write their replies back on them, a reader thread per connection
+ * hands those to the {@link Dispatcher}, which matches them to waiting sessions by session id.
+ */
+public class ConnectionPool {
+    private static final String TAG = ConnectionPool.class.getName();
+
+    public static final String HOST = "10.0.2.2";
+    public static final int CONNECT_TIMEOUT = 800; // ms
+    // idle connections kept per peer, more can be open while there are more in-flight sends.
+    private static final int MAX_IDLE_PER_PEER = 4;
+
+    private static final Map<String, BlockingDeque<Connection>> IDLE = new ConcurrentHashMap<>(); // <port, idle connections>
+    private static volatile Dispatcher dispatcher;
+
+    public static void setDispatcher(Dispatcher dispatcher) {
+        ConnectionPool.dispatcher = dispatcher;
+    }
+
+    public static Connection acquire(String node) throws IOException {
+        Connection connection = idle(node).pollFirst();
+        if (connection != null && connection.isOpen()) {
+            connection.reused = true;
+            return connection;
+        }
+        if (connection != null) {
+            connection.close();
+        }
+        return connect(node);
+    }
+
+    public static void release(Connection connection) {
+        if (!connection.isOpen() || !idle(connection.node).offerFirst(connection)) {
+            connection.close();
+        }
+    }
+
+    public static void invalidate(Connection connection) {
+        connection.close();
+        // peer probably restarted, so the other idle connections are stale as well.
+        BlockingDeque<Connection> idle = idle(connection.node);
+        Connection stale;
+        while ((stale = idle.pollFirst()) != null) {
+            stale.close();
+        }
+    }
+
+    public static void warmUp(Collection<String> nodes) {
+        for (String node : nodes) {
+            try {
+                release(connect(node));
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot warm up connection to: " + node);
+            }
+        }
+    }
+
+    private static Connection connect(String node) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(HOST, Integer.parseInt(node)), CONNECT_TIMEOUT);
+            Log.d(TAG, "Connected to: " + node);
+            Connection connection = new Connection(node, socket);
+            connection.startReader();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static BlockingDeque<Connection> idle(String node) {
+        BlockingDeque<Connection> idle = IDLE.get(node);
+        if (idle == null) {
+            synchronized (IDLE) {
+                idle = IDLE.get(node);
+                if (idle == null) {
+                    idle = new LinkedBlockingDeque<>(MAX_IDLE_PER_PEER);
+                    IDLE.put(node, idle);
+                }
+            }
+        }
+        return idle;
+    }
+
+    public static class Connection implements Closeable, PeerChannel, Runnable {
+        private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+        private final String node;
+        private final Socket socket;
+        private final OutputStream out;
+        private boolean reused = false;
+
+        private Connection(String node, Socket socket) throws IOException {
+            this.node = node;
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void startReader() {
+            Thread reader = new Thread(this, "Connection-" + node + "-" + socket.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public boolean isReused() {
+            return reused;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed() && socket.isConnected() && !socket.isOutputShutdown();
+        }
+
+        @Override
+        public void write(Payload payload) throws IOException {
+            ByteBuffer message = PayloadCodec.encode(payload);
+            if (message != null) {
+                write(message);
+            }
+        }
+
+        public synchronized void write(ByteBuffer message) throws IOException {
+            Frame.write(out, message);
+            out.flush();
+        }
+
+        // reads replies sent back on this connection until it closes.
+        @Override
+        public void run() {
+            Frame.Decoder decoder = new Frame.Decoder();
+            List<byte[]> frames = new ArrayList<>();
+            byte[] chunk = new byte[READ_BUFFER_SIZE];
+            try {
+                InputStream in = socket.getInputStream();
+                int n;
+                while ((n = in.read(chunk)) != -1) {
+                    decoder.decode(ByteBuffer.wrap(chunk, 0, n), frames);
+                    Dispatcher current = dispatcher;
+                    boolean accepted = true;
+                    for (byte[] frame : frames) {
+                        Payload payload = PayloadCodec.decode(ByteBuffer.wrap(frame));
+                        if (payload != null && current != null) {
+                            accepted &= current.dispatch(payload, this);
+                        }
+                    }
+                    frames.clear();
+                    if (!accepted) {
+                        // stop reading, the peer backs off once its socket buffer fills.
+                        current.awaitDrained();
+                    }
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.w(TAG, "Connection to " + node + " broke", e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot close connection to: " + node, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands payloads decoded by the I/O threads to a bounded worker pool. Handlers may block on recovery or SQLite,
+ * running one on the I/O thread would stall the replies the busy workers wait for. When the pool is saturated
+ * the payload is parked and {@link #dispatch} returns false: the I/O thread stops reading that connection until
+ * the backlog drains, so the sender's socket fills up and it slows down instead of losing messages.
+ */
+class Dispatcher {
+    private static final String TAG = Dispatcher.class.getName();
+    private static final int WORKERS = 8;
+    private static final int WORK_QUEUE_SIZE = 256;
+
+    private final Dynamo dynamo;
+    private final ThreadPoolExecutor workers;
+    // tasks that did not fit the work queue, bounded by what the paused connections had already read.
+    private final ArrayDeque<Runnable> backlog = new ArrayDeque<>(); // guarded by itself
+    private final AtomicLong stalls = new AtomicLong();
+    private volatile DrainListener drainListener;
+
+    public interface DrainListener {
+        // called on a worker thread once every parked payload is queued again
+        void drained();
+    }
+
+    public Dispatcher(Dynamo dynamo) {
+        this.dynamo = dynamo;
+        this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(WORK_QUEUE_SIZE), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Dispatcher-worker-" + count.incrementAndGet());
+            }
+        }) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                drain();
+            }
+        };
+    }
+
+    public void setDrainListener(DrainListener listener) {
+        this.drainListener = listener;
+    }
+
+    // how often the workers were saturated and the I/O threads had to stop reading.
+    public long stalls() {
+        return stalls.get();
+    }
+
+    public boolean isSaturated() {
+        synchronized (backlog) {
+            return !backlog.isEmpty();
+        }
+    }
+
+    /**
+     * Blocks until the parked payloads are queued for the workers.
+     */
+    public void awaitDrained() throws InterruptedException {
+        synchronized (backlog) {
+            while (!backlog.isEmpty()) {
+                backlog.wait();
+            }
+        }
+    }
+
+    /**
+     * Returns false if the workers are saturated, the payload is kept and handled later, but the caller
+     * should stop reading until the backlog drains.
+     */
+    public boolean dispatch(final Payload payload, PeerChannel origin) {
+        payload.setOrigin(origin);
+        FailureDetector.heard(payload.getFromPort());
+        switch (payload.getMessageType()) {
+            case BATCH: {
+                boolean accepted = true;
+                for (Payload p : payload.getBatch()) {
+                    accepted &= dispatch(p, origin);
+                }
+                return accepted;
+            }
+            case HEARTBEAT:
+            case ACK:
+            case QUERY_REPLY:
+            case SCAN_REPLY: {
+                // only completes a waiting session or records a position, cheap enough for the I/O thread
+                // and must not queue behind workers that are blocked waiting for this very reply.
+                handle(payload);
+                return true;
+            }
+            default: {
+                return submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(payload);
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean submit(Runnable task) {
+        synchronized (backlog) {
+            // once something is parked later tasks queue behind it, so they keep their order.
+            if (backlog.isEmpty()) {
+                try {
+                    workers.execute(task);
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    long count = stalls.incrementAndGet();
+                    Log.w(TAG, "Workers saturated, pausing reads, " + count + " so far");
+                }
+            }
+            backlog.add(task);
+            return false;
+        }
+    }
+
+    // moves parked tasks to the work queue as it frees up.
+    private void drain() {
+        synchronized (backlog) {
+            if (backlog.isEmpty()) {
+                return;
+            }
+            while (!backlog.isEmpty()) {
+                try {
+                    workers.execute(backlog.peek());
+                } catch (RejectedExecutionException e) {
+                    return;
+                }
+                backlog.poll();
+            }
+            backlog.notifyAll();
+        }
+        DrainListener listener = drainListener;
+        if (listener != null) {
+            listener.drained();
+        }
+    }
+
+    private void handle(Payload payload) {
+        try {
+            dynamo.handle(payload);
+        } catch (Exception e) {
+            Log.e(TAG, "Dispatcher handle Exception " + payload, e);
+        }
+    }
+}
@@ -1,26 +1,25 @@
 package edu.buffalo.cse.cse486586.simpledynamo;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.os.AsyncTask;
 import android.telephony.TelephonyManager;
 import android.util.Log;
-import android.util.Pair;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static edu.buffalo.cse.cse486586.simpledynamo.Payload.MessageType.RECOVERY_REPLY;
@@ -33,18 +32,35 @@ public class Dynamo {
     public static final int SERVER_PORT = 10000;
     private static final String TAG = Dynamo.class.getName();
     public static final int TIMEOUT = 1500; // ms
+    // bounds of one chunk of a streamed reply
+    private static final int CHUNK_ROWS = 512;
+    private static final int CHUNK_BYTES = 32 * 1024;
+    // rows per node and page of a scan
+    public static final int MAX_PAGE_SIZE = 1000;
+    private static final int SCAN_ATTEMPTS = 2;
     private static Dynamo INSTANCE = null;
 
-    // used to aggregate query replies
-    private static Map<UUID, Map<String, Payload.Value>> REPLIES = new ConcurrentHashMap<>();
-    // used to track request/response sessions and wait.
-    private static Map<UUID, Semaphore> SESSIONS = new ConcurrentHashMap<>();
+    // replies are still merged this long after their waiter's timeout
+    private static final long LATE_REPLIES = TIMEOUT; // ms
+    private static final long RECOVERY_WAIT = 5 * 1000; // ms, reads wait at most this long for the catch-up
+    private static final long RECOVERY_TIMEOUT = 60 * 1000; // ms, for all of it to arrive
+    private static final long MEMBERSHIP_PULL_INTERVAL = 1000; // ms, between asking peers for a newer ring
     private static AtomicLong version = new AtomicLong(1);
     private final Context context;
     private final SimpleDynamoDB db;
+    private final Rebalancer rebalancer;
+    private final HintedHandoff hints;
+    private final AntiEntropy antiEntropy;
+    private final Watermarks watermarks;
+    private final ReadRepair readRepair;
+    // requests waiting for replies: ACKs, query replies and streams
+    private final PendingRequests pending = new PendingRequests();
     private String myId;
     private String myPort;
-    private static volatile UUID recoverySessionId;
+    private volatile PendingRequests.Request recovery;
+    private volatile long recoveryDeadline; // ms
+    private volatile long lastMembershipPull = 0; // ms
+    private volatile Dispatcher dispatcher;
 
     private Dynamo(Context context) {
         this.context = context;
@@ -53,6 +69,14 @@ public class Dynamo {
         TelephonyManager tel = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
         this.myId = tel.getLine1Number().substring(tel.getLine1Number().length() - 4);
         this.myPort = String.valueOf((Integer.parseInt(myId) * 2));
+
+        DynamoRing.configure(context);
+        HybridClock.configure(myPort);
+        this.rebalancer = new Rebalancer(this, db, myPort);
+        this.hints = new HintedHandoff(this, db, myPort);
+        this.antiEntropy = new AntiEntropy(this, db, myPort);
+        this.watermarks = new Watermarks(context);
+        this.readRepair = new ReadRepair(this, myPort);
     }
 
     public static Dynamo get(Context context) {
@@ -67,23 +91,42 @@ public class Dynamo {
     }
 
     public void start() {
-        try {
-            ServerSocket serverSocket = new ServerSocket(SERVER_PORT);
-            serverSocket.setReuseAddress(true);
-            new ServerTask(context)
-                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, serverSocket);
-
-            if (db.count() > 0) {
-                db.drop();
+        pending.start();
+        dispatcher = new Dispatcher(this);
+        ConnectionPool.setDispatcher(dispatcher);
+        Thread server = new Thread(new ServerTask(dispatcher, SERVER_PORT), "ServerTask");
+        server.setDaemon(true);
+        server.start();
+        rebalancer.start();
+        hints.start();
+        FailureDetector.start(myPort, db);
+        antiEntropy.start();
 
-                // Start recovery
-                Payload recoverRequest = track(Payload.recoverRequest(myPort), 4);
-                List<String> recoveryNodes = DynamoRing.recoveryNodes(myPort);
-                sendTo(recoveryNodes, recoverRequest);
-                recoverySessionId = recoverRequest.getSessionId();
+        try {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ConnectionPool.warmUp(DynamoRing.allOtherNodes(myPort));
+                }
+            });
+
+            // peers with a newer membership answer with it, peers with an older one adopt ours.
+            sendTo(DynamoRing.allOtherNodes(myPort), Payload.membership(myPort, DynamoRing.nodes(), DynamoRing.epoch()));
+
+            // local data is kept, each peer only sends the rows it wrote since we last heard from it.
+            // a first start has nothing to catch up on.
+            List<String> recoveryNodes = DynamoRing.recoveryNodes(myPort);
+            if (!recoveryNodes.isEmpty() && (!watermarks.isEmpty() || db.count() > 0)) {
+                Payload recoverRequest = Payload.recoverRequest(myPort);
+                PendingRequests.Request request = track(recoverRequest, recoveryNodes.size(), recoveryNodes.size(), RECOVERY_TIMEOUT);
+                for (String node : recoveryNodes) {
+                    sendTo(node, recoverRequest.version(watermarks.recoverySince(node)));
+                }
+                recoveryDeadline = System.currentTimeMillis() + RECOVERY_WAIT;
+                recovery = request;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Can't create a ServerSocket");
+        } catch (Exception e) {
+            Log.e(TAG, "Can't start recovery", e);
         }
     }
 
@@ -91,31 +134,37 @@ public class Dynamo {
         switch (payload.getMessageType()) {
             case ACK: {
                 Log.d(TAG, "Received ACK " + payload);
-                SESSIONS.get(payload.getSessionId()).release();
+                PendingRequests.Request request = pending.request(payload);
+                if (request != null) {
+                    request.replied();
+                }
                 break;
             }
             case INSERT: {
                 switch (payload.getNodeType()) {
                     case COORDINATOR: {
-                        // Insert
-                        payload = payload.version(newVersionNumber(payload.getKey())).fromPort(myPort);
+                        // Insert, the version was stamped by the node the client called
+                        final Payload request = payload;
+                        payload = payload.fromPort(myPort);
                         dbInsert(payload);
                         Log.v(TAG, "Coordinator Inserted " + payload.getValue());
 
-                        // Forward to replicas, by using chain replication
-                        List<String> replicas = DynamoRing.replicasForCoordinator(myPort);
-
-                        Payload replicaInsert1 = payload.nodeType(REPLICA);
-                        Payload replicaInsert2 = track(replicaInsert1.ack(true));
-                        sendTo(replicas.get(1), replicaInsert2);
-                        sendTo(replicas.get(0), replicaInsert1);
-
-                        // wait for ACK from last replica. i.e chain replication
-                        if (waitForCompletion(replicaInsert2.getSessionId(), TIMEOUT, TimeUnit.MILLISECONDS)) {
-                            Log.d(TAG, "Received INSERT ACK from last replica");
-                        } else {
-                            Log.w(TAG, "Replica INSERT TimedOut " + replicaInsert2);
-                        }
+                        // Forward to replicas, the write is done once W nodes including this one have it.
+                        List<String> replicas = DynamoRing.replicasForKey(payload.getKey());
+
+                        final Payload replicaInsert = payload.nodeType(REPLICA);
+                        replicate(replicas, replicaInsert, DynamoRing.writeQuorum() - 1, TIMEOUT, new PendingRequests.Listener() {
+                            @Override
+                            public void done(boolean complete) {
+                                if (complete) {
+                                    Log.d(TAG, "Received INSERT write quorum");
+                                    sendAck(request);
+                                } else {
+                                    // no ACK, the requester writes to the replicas itself.
+                                    Log.w(TAG, "Replica INSERT TimedOut " + replicaInsert);
+                                }
+                            }
+                        });
                         break;
                     }
                     default: {
@@ -123,11 +172,6 @@ public class Dynamo {
                             // Send ack if requested.
                             sendAck(payload);
                         }
-                        boolean fromCoordinator = DynamoRing.coordinatorForKey(payload.getKey()).equals(payload.getFromPort());
-                        if (!fromCoordinator && payload.getNodeType() == REPLICA) {
-                            payload = payload.version(newVersionNumber(payload.getKey()));
-                        }
-
                         // Insert
                         dbInsert(payload);
                         Log.v(TAG, "Replica Inserted " + payload);
@@ -142,20 +186,21 @@ public class Dynamo {
                         // Send ack.
                         sendAck(payload);
 
-                        List<String> replicas = DynamoRing.replicasForCoordinator(myPort);
-                        sendTo(replicas, payload.fromPort(myPort).nodeType(REPLICA));
+                        payload = payload.fromPort(myPort);
+                        List<String> replicas = DynamoRing.replicasForKey(payload.getKey());
+                        sendTo(replicas, payload.nodeType(REPLICA));
                         break;
                     }
                 }
                 switch (payload.getKey()) {
                     case ALL: {
                         Log.d(TAG, "DELETE ALL: " + payload);
-                        db.drop();
+                        drop();
                         break;
                     }
                     default: {
                         Log.d(TAG, "DELETE : " + payload);
-                        db.delete(payload.getKey());
+                        dbDelete(payload.getKey(), payload.getVersion());
                         break;
                     }
                 }
@@ -170,11 +215,8 @@ public class Dynamo {
 
                         Payload queryReply = payload.fromPort(myPort).messageType(Payload.MessageType.QUERY_REPLY);
                         try (Cursor cursor = db.all()) {
-                            while (cursor.moveToNext()) {
-                                queryReply.getQueryResults().put(cursor.getString(0), new Payload.Value(cursor.getString(1), cursor.getLong(2)));
-                            }
+                            streamReply(payload, queryReply, cursor, null);
                         }
-                        sendTo(payload.getFromPort(), queryReply);
 
                         break;
                     }
@@ -189,35 +231,86 @@ public class Dynamo {
                         }
                         if (queryReply.getQueryResults().isEmpty()) {
                             Log.w(TAG, payload.getNodeType() + " Watch out for inconsistencies!");
-                        } else {
-                            sendTo(payload.getFromPort(), queryReply);
                         }
+                        // replies even without the key, a miss counts towards the read quorum.
+                        reply(payload, queryReply);
                         break;
                     }
                 }
                 break;
             }
+            case QUERY_KEYS: {
+                waitForRecovery();
+                Log.d(TAG, "QUERY KEYS from " + payload.getFromPort() + ": " + payload.getQueryResults().size());
+                Payload queryReply = payload.fromPort(myPort).messageType(Payload.MessageType.QUERY_REPLY);
+                try (Cursor cursor = db.query(new ArrayList<>(payload.getQueryResults().keySet()))) {
+                    streamReply(payload, queryReply, cursor, null);
+                }
+                break;
+            }
             case QUERY_REPLY: {
                 Log.d(TAG, "QUERY REPLY:" + payload);
-                REPLIES.get(payload.getSessionId()).putAll(payload.getQueryResults());
-                SESSIONS.get(payload.getSessionId()).release();
+                PendingRequests.Request request = pending.request(payload);
+                if (request == null) {
+                    break;
+                }
+                keepNewest(request.results(), payload.getQueryResults());
+                if (payload.getKey() != null && !ALL.equals(payload.getKey())) {
+                    // single key requests carry their send time
+                    PeerLatency.record(payload.getFromPort(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - payload.getVersion()));
+                    readRepair.replied(payload.getSessionId(), payload.getFromPort(), payload.getQueryResults().get(payload.getKey()));
+                }
+                if (request.streamCompleted(payload)) {
+                    request.replied();
+                }
+                break;
+            }
+            case SCAN: {
+                waitForRecovery();
+                Log.d(TAG, "SCAN from " + payload.getFromPort() + " after " + payload.getValue());
+                Map<String, Payload.Value> rows = new HashMap<>();
+                String last = scanPage(payload.getKey(), payload.getValue(), (int) payload.getVersion(), rows);
+                reply(payload, payload.fromPort(myPort).messageType(Payload.MessageType.SCAN_REPLY).value(last).chunk(0, true, rows));
+                break;
+            }
+            case SCAN_REPLY: {
+                PendingRequests.Request request = pending.request(payload);
+                if (request == null) {
+                    break;
+                }
+                keepNewest(request.results(), payload.getQueryResults());
+                request.bound(payload.getValue()); // before replied, the merge reads it once the replies are in
+                request.repliedBy(payload.getFromPort());
+                request.replied();
+                break;
+            }
+            case MERKLE:
+            case MERKLE_SYNC: {
+                antiEntropy.handle(payload);
+                break;
+            }
+            case HEARTBEAT: {
+                watermarks.advance(payload.getFromPort(), payload.getVersion());
+                // a membership change this node missed: our MEMBERSHIP is older, the peer answers with its own
+                long now = System.currentTimeMillis();
+                if (payload.getValue() != null && Long.parseLong(payload.getValue()) > DynamoRing.epoch()
+                        && now - lastMembershipPull >= MEMBERSHIP_PULL_INTERVAL) {
+                    lastMembershipPull = now;
+                    Log.w(TAG, payload.getFromPort() + " is at epoch " + payload.getValue() + ", asking for its ring");
+                    sendTo(payload.getFromPort(), Payload.membership(myPort, DynamoRing.nodes(), DynamoRing.epoch()));
+                }
                 break;
             }
             case RECOVERY_REQUEST: {
                 waitForRecovery();
 
+                // version is the position to send from, the reply tells the requester where we are now.
                 Log.d(TAG, "RECOVERY REQUEST from:" + payload.getFromPort() + ": " + payload);
-                Payload recoveryReply = payload.fromPort(myPort).messageType(RECOVERY_REPLY);
+                Payload recoveryReply = payload.fromPort(myPort).messageType(RECOVERY_REPLY).version(db.lastUpdated());
                 long start = System.nanoTime();
-                try (Cursor cursor = db.all()) {
-                    while (cursor.moveToNext()) {
-                        String key = cursor.getString(0);
-                        if (DynamoRing.preferenceListForKey(key).contains(payload.getFromPort())) {
-                            recoveryReply.getQueryResults().put(key, new Payload.Value(cursor.getString(1), cursor.getLong(cursor.getColumnIndex("version"))));
-                        }
-                    }
+                try (Cursor cursor = db.updatedSince(payload.getVersion())) {
+                    streamReply(payload, recoveryReply, cursor, payload.getFromPort());
                 }
-                sendTo(payload.getFromPort(), recoveryReply);
 
                 Log.d(TAG, "RECOVERY REPLY TIME took: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
 
@@ -225,311 +318,931 @@ public class Dynamo {
             }
             case RECOVERY_REPLY: {
                 Log.d(TAG, "RECOVERY REPLY from:" + payload.getFromPort() + ": " + payload);
-                for (Map.Entry<String, Payload.Value> entry : payload.getQueryResults().entrySet()) {
-                    long version = Long.MIN_VALUE;
-                    try (Cursor cursor = db.query(entry.getKey())) {
-                        while (cursor.moveToNext()) {
-                            version = cursor.getLong(cursor.getColumnIndex("version"));
-                        }
-                    }
-                    if (entry.getValue().getVersion() >= version) {
-                        dbInsert(entry);
-                    }
+                merge(payload.getQueryResults());
+                PendingRequests.Request request = pending.request(payload);
+                if (request != null && request.streamCompleted(payload)) {
+                    watermarks.advance(payload.getFromPort(), payload.getVersion());
+                    request.replied();
+                }
+                break;
+            }
+            case MEMBERSHIP: {
+                Log.d(TAG, "MEMBERSHIP from:" + payload.getFromPort() + ": " + payload);
+                long epoch = DynamoRing.epoch();
+                if (payload.getVersion() > epoch) {
+                    changeMembership(DynamoRing.split(payload.getValue()), payload.getVersion());
+                } else if (payload.getVersion() < epoch) {
+                    // the sender missed a change, e.g. it was down.
+                    reply(payload, Payload.membership(myPort, DynamoRing.nodes(), epoch));
+                }
+                break;
+            }
+            case HANDED_OFF: {
+                rebalancer.handedOff(payload.getFromPort(), payload.getVersion());
+                break;
+            }
+            case HANDOFF: {
+                Log.d(TAG, "HANDOFF from:" + payload.getFromPort() + " rows: " + payload.getQueryResults().size());
+                merge(payload.getQueryResults());
+                if (payload.isAck()) {
+                    sendAck(payload);
                 }
-                SESSIONS.get(payload.getSessionId()).release();
                 break;
             }
         }
 
     }
 
-    public void insert(ContentValues values) {
-        waitForRecovery();
-
-        String key = values.getAsString("key");
-        String value = values.getAsString("value");
+    /**
+     * Writes key on W replicas, the future completes once they acknowledged it or the write timed out.
+     * Nothing blocks meanwhile, the steps continue on the threads that handle the replies.
+     */
+    public DynamoFuture<Void> insertAsync(final String key, final String value) {
+        final DynamoFuture<Void> future = new DynamoFuture<>();
+        afterRecovery(new Step<Void>(future) {
+            @Override
+            void next(boolean complete) {
+                insert(key, value, future);
+            }
+        });
+        return future;
+    }
 
-        String coordinator = DynamoRing.coordinatorForKey(key);
-        List<String> replicasForCoordinator = DynamoRing.replicasForCoordinator(coordinator);
-        long version = newVersionNumber(key);
+    private void insert(final String key, final String value, final DynamoFuture<Void> future) {
+        final String coordinator = DynamoRing.coordinatorForKey(key);
+        final List<String> replicas = DynamoRing.replicasForKey(key);
+        final long version = HybridClock.now();
 
         if (coordinator.equals(myPort)) {
-            values.put("version", version);
-            db.insert(values);
-            Log.v(TAG, "Coordinator Inserted " + values.toString());
-
-            // now replicate, wait for ack from last replica/partition (chain replication)
-            Payload replicaInsert1 = Payload.insert(myPort, key, value, REPLICA, version);
-            Payload replicaInsert2 = track(replicaInsert1.ack(true));
-            sendTo(replicasForCoordinator.get(1), replicaInsert2);
-            sendTo(replicasForCoordinator.get(0), replicaInsert1);
-
-            Log.d(TAG, "Sending INSERT to replicas:" + replicasForCoordinator + " " + replicaInsert1);
+            dbInsert(key, value, version);
+            Log.v(TAG, "Coordinator Inserted " + key + " " + value);
+
+            // now replicate, wait for the ACKs that make up the write quorum with this node
+            final Payload replicaInsert = Payload.insert(myPort, key, value, REPLICA, version);
+            Log.d(TAG, "Sending INSERT to replicas:" + replicas + " " + replicaInsert);
+            replicate(replicas, replicaInsert, DynamoRing.writeQuorum() - 1, TIMEOUT * 2, new Step<Void>(future) {
+                @Override
+                void next(boolean complete) {
+                    if (complete) {
+                        Log.d(TAG, "Received INSERT ACK from Replicas");
+                    } else {
+                        Log.w(TAG, "Replica INSERT TimedOut " + replicaInsert);
+                    }
+                    future.complete(null);
+                }
+            });
+            return;
+        }
 
-            // wait for ACK
-            if (waitForCompletion(replicaInsert2.getSessionId(), TIMEOUT * 2, TimeUnit.MILLISECONDS)) {
-                Log.d(TAG, "Received INSERT ACK from Replicas");
-            } else {
-                Log.w(TAG, "Replica INSERT TimedOut " + replicaInsert1);
+        final Payload insert = Payload.insert(myPort, key, value, COORDINATOR, version);
+        // timed out, i.e coordinator is down: forward to replicas, all W come from replicas now
+        final Step<Void> fallback = new Step<Void>(future) {
+            @Override
+            void next(boolean complete) {
+                Log.d(TAG, "Coordinator INSERT TimedOut or offline " + insert);
+                final Payload replicaInsert = Payload.insert(myPort, key, value, REPLICA, version);
+                Log.d(TAG, "Forward INSERT to replicas " + replicas + " " + replicaInsert);
+                // the coordinator gets the write once it is back
+                hints.add(coordinator, replicaInsert);
+                replicate(replicas, replicaInsert, Math.min(DynamoRing.writeQuorum(), replicas.size()), TIMEOUT * 2, new Step<Void>(future) {
+                    @Override
+                    void next(boolean complete) {
+                        if (complete) {
+                            Log.d(TAG, "Received INSERT ACK from Replicas");
+                        } else {
+                            Log.e(TAG, "Replica INSERT TimedOut " + replicaInsert);
+                        }
+                        future.complete(null);
+                    }
+                });
             }
-        } else {
-            Payload insert = track(Payload.insert(myPort, key, value, COORDINATOR, version));
-
-            sendTo(coordinator, insert);
-            Log.d(TAG, "Sending INSERT to Coordinator:" + coordinator + " " + insert);
-
-            // wait for ACK
-            if (waitForCompletion(insert.getSessionId(), TIMEOUT * 2, TimeUnit.MILLISECONDS)) {
-                Log.d(TAG, "Received INSERT ACK from Coordinator");
-            } else {
-                Log.d(TAG, "Coordinator INSERT TimedOut " + insert);
-                // timed out, i.e coordinator is down
-                // forward to replicas.
+        };
 
-                Payload replicaInsert1 = Payload.insert(myPort, key, value, REPLICA, version);
-                Payload replicaInsert2 = track(replicaInsert1.ack(true));
+        // a suspected coordinator is skipped right away instead of waiting out the timeout.
+        if (DynamoRing.isOffline(coordinator)) {
+            fallback.done(false);
+            return;
+        }
+        PendingRequests.Request request = track(insert, 1, 1, TIMEOUT * 2);
+        sendTo(coordinator, insert);
+        Log.d(TAG, "Sending INSERT to Coordinator:" + coordinator + " " + insert);
+        listen(request, TIMEOUT * 2, new Step<Void>(future) {
+            @Override
+            void next(boolean complete) {
+                if (complete) {
+                    Log.d(TAG, "Received INSERT ACK from Coordinator");
+                    future.complete(null);
+                } else {
+                    fallback.done(false);
+                }
+            }
+        });
+    }
 
-                sendTo(replicasForCoordinator.get(1), replicaInsert2);
-                sendTo(replicasForCoordinator.get(0), replicaInsert1);
+    /**
+     * Writes many keys at once: the rows are grouped by replica and each replica gets one HANDOFF per
+     * {@link #CHUNK_ROWS} of its rows, so the whole batch takes about one round trip. Completes with the number
+     * of keys that reached the write quorum, once all did or every replica answered or timed out.
+     */
+    public DynamoFuture<Integer> insertAllAsync(final Map<String, String> values) {
+        final DynamoFuture<Integer> future = new DynamoFuture<>();
+        afterRecovery(new Step<Integer>(future) {
+            @Override
+            void next(boolean complete) {
+                insertAll(values, future);
+            }
+        });
+        return future;
+    }
 
-                Log.d(TAG, "Forward INSERT to replicas " + replicasForCoordinator + " " + replicaInsert1);
+    private void insertAll(Map<String, String> values, final DynamoFuture<Integer> future) {
+        final int writeQuorum = DynamoRing.writeQuorum();
+        final Map<String, AtomicInteger> acks = new HashMap<>(); // <key, replicas that have it>
+        Map<String, Map<String, Payload.Value>> byNode = new HashMap<>(); // <node, rows>
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String key = entry.getKey();
+            long version = HybridClock.now();
+            acks.put(key, new AtomicInteger());
+            for (String node : DynamoRing.preferenceListForKey(key)) {
+                if (DynamoRing.isOffline(node)) {
+                    // a hint is not a replica, it does not count towards the write quorum
+                    hints.add(node, Payload.insert(myPort, key, entry.getValue(), REPLICA, version));
+                    continue;
+                }
+                Map<String, Payload.Value> rows = byNode.get(node);
+                if (rows == null) {
+                    rows = new HashMap<>();
+                    byNode.put(node, rows);
+                }
+                rows.put(key, new Payload.Value(entry.getValue(), version));
+            }
+        }
 
-                // wait for ACK
-                if (waitForCompletion(replicaInsert2.getSessionId(), TIMEOUT * 2, TimeUnit.MILLISECONDS)) {
-                    Log.d(TAG, "Received INSERT ACK from Replicas");
-                } else {
-                    Log.e(TAG, "Replica INSERT TimedOut " + replicaInsert1);
+        List<Map<String, Payload.Value>> chunks = new ArrayList<>();
+        List<String> chunkNodes = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Payload.Value>> entry : byNode.entrySet()) {
+            Map<String, Payload.Value> chunk = new HashMap<>();
+            for (Map.Entry<String, Payload.Value> row : entry.getValue().entrySet()) {
+                chunk.put(row.getKey(), row.getValue());
+                if (chunk.size() >= CHUNK_ROWS) {
+                    chunks.add(chunk);
+                    chunkNodes.add(entry.getKey());
+                    chunk = new HashMap<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(chunk);
+                chunkNodes.add(entry.getKey());
+            }
+        }
 
-                    // try to send again to coordinator:
-                    sendTo(coordinator, insert);
+        // keys still short of the write quorum, and chunks not answered yet
+        final AtomicInteger shortKeys = new AtomicInteger(acks.size());
+        final AtomicInteger pendingChunks = new AtomicInteger(chunks.size());
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                int written = 0;
+                for (AtomicInteger keyAcks : acks.values()) {
+                    written += keyAcks.get() >= writeQuorum ? 1 : 0;
                 }
+                Log.d(TAG, "Bulk INSERT of " + acks.size() + " keys, " + written + " reached the write quorum");
+                future.complete(written);
             }
+        };
+        if (chunks.isEmpty()) {
+            finish.run();
+            return;
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            final Map<String, Payload.Value> chunk = chunks.get(i);
+            final String node = chunkNodes.get(i);
+            Payload handoff = Payload.handoff(myPort, chunk).ack(true);
+            PendingRequests.Request request = track(handoff, 1, 1, TIMEOUT * 2);
+            sendTo(node, handoff);
+            listen(request, TIMEOUT * 2, new Step<Integer>(future) {
+                @Override
+                void next(boolean complete) {
+                    if (complete) {
+                        for (String key : chunk.keySet()) {
+                            if (acks.get(key).incrementAndGet() == writeQuorum && shortKeys.decrementAndGet() == 0) {
+                                finish.run();
+                            }
+                        }
+                    } else {
+                        // the node may not have the rows, replay them once it is reachable
+                        for (Map.Entry<String, Payload.Value> row : chunk.entrySet()) {
+                            hints.add(node, Payload.insert(myPort, row.getKey(), row.getValue().getValue(), REPLICA, row.getValue().getVersion()));
+                        }
+                    }
+                    if (pendingChunks.decrementAndGet() == 0) {
+                        finish.run();
+                    }
+                }
+            });
         }
     }
 
-    public long delete(String key) {
+    /**
+     * Deletes key, or all keys for "*" and the local ones for "@". Completes with the number of local rows
+     * removed by "@", 0 otherwise.
+     */
+    public DynamoFuture<Integer> deleteAsync(final String key) {
         switch (key) {
             case ALL: {
-                db.drop();
+                drop();
                 sendTo(DynamoRing.allOtherNodes(myPort), Payload.delete(myPort, ALL, Payload.NodeType.ALL));
-                break;
+                return DynamoFuture.completed(0);
             }
             case LOCAL: {
-                return db.drop();
+                return DynamoFuture.completed(drop());
             }
             default: {
                 String coordinator = DynamoRing.coordinatorForKey(key);
+                long version = HybridClock.now();
 
                 if (coordinator.equals(myPort)) {
-                    db.delete(key);
-
-                    List<String> replicas = DynamoRing.replicasForCoordinator(coordinator);
-                    sendTo(replicas, Payload.delete(myPort, key, REPLICA));
-                } else {
-                    Payload delete = Payload.delete(myPort, key, COORDINATOR);
-                    SESSIONS.put(delete.getSessionId(), new Semaphore(0));
+                    dbDelete(key, version);
 
-                    sendTo(coordinator, delete);
+                    List<String> replicas = DynamoRing.replicasForKey(key);
+                    sendTo(replicas, Payload.delete(myPort, key, REPLICA).version(version));
+                    return DynamoFuture.completed(0);
+                }
 
-                    // wait for ACK
-                    if (waitForCompletion(delete.getSessionId(), TIMEOUT, TimeUnit.MILLISECONDS)) {
-                        Log.d(TAG, "Received DELETE ACK from Coordinator");
-                    } else {
+                final DynamoFuture<Integer> future = new DynamoFuture<>();
+                final Payload delete = Payload.delete(myPort, key, COORDINATOR).version(version);
+                final Step<Integer> fallback = new Step<Integer>(future) {
+                    @Override
+                    void next(boolean complete) {
                         // timed out, i.e coordinator is down
                         // forward to replicas.
-
-                        List<String> replicas = DynamoRing.replicasForCoordinator(coordinator);
-                        sendTo(replicas, delete.nodeType(REPLICA));
+                        sendTo(DynamoRing.replicasForKey(key), delete.nodeType(REPLICA));
+                        future.complete(0);
                     }
+                };
+                if (DynamoRing.isOffline(coordinator)) {
+                    fallback.done(false);
+                    return future;
                 }
-                break;
+                PendingRequests.Request request = track(delete, 1, 1, TIMEOUT);
+                sendTo(coordinator, delete);
+                listen(request, TIMEOUT, new Step<Integer>(future) {
+                    @Override
+                    void next(boolean complete) {
+                        if (complete) {
+                            Log.d(TAG, "Received DELETE ACK from Coordinator");
+                            future.complete(0);
+                        } else {
+                            fallback.done(false);
+                        }
+                    }
+                });
+                return future;
             }
         }
-        return 0L;
     }
 
-    public Cursor query(String key) {
-        waitForRecovery();
-
-        switch (key) {
-            case ALL: {
-                Log.d(TAG, "QUERY ALL: " + key);
-                MatrixCursor result = new MatrixCursor(new String[]{"key", "value"});
-
-                Payload query = track(Payload.queryRequest(myPort, ALL, Payload.NodeType.ALL), 4);
-
-                try (Cursor cursor = db.all()) {
-                    while (cursor.moveToNext()) {
-                        result.addRow(new String[]{cursor.getString(0), cursor.getString(1)});
+    /**
+     * Reads key, all keys for "*" or the local ones for "@", as a cursor of key and value.
+     */
+    public DynamoFuture<Cursor> queryAsync(final String key) {
+        final DynamoFuture<Cursor> future = new DynamoFuture<>();
+        afterRecovery(new Step<Cursor>(future) {
+            @Override
+            void next(boolean complete) {
+                switch (key) {
+                    case ALL: {
+                        queryAll(future);
+                        break;
+                    }
+                    case LOCAL: {
+                        Log.d(TAG, "QUERY @ LOCAL");
+                        MatrixCursor result = new MatrixCursor(new String[]{"key", "value"});
+                        try (Cursor cursor = db.values()) {
+                            while (cursor.moveToNext()) {
+                                result.addRow(new String[]{cursor.getString(0), cursor.getString(1)});
+                            }
+                        }
+                        future.complete(result);
+                        break;
+                    }
+                    default: {
+                        query(key, future);
+                        break;
                     }
                 }
+            }
+        });
+        return future;
+    }
 
-                sendTo(DynamoRing.allOtherNodes(myPort), query);
+    // walks the scan pages, so no node holds more than a page of its rows at a time.
+    private void queryAll(final DynamoFuture<Cursor> future) {
+        Log.d(TAG, "QUERY ALL");
+        queryAll(new MatrixCursor(new String[]{"key", "value"}), null, future);
+    }
 
-                if (waitForCompletion(query.getSessionId(), 10, TimeUnit.SECONDS)) {
-                    Log.d(TAG, "Query ALL completed");
-                } else {
-                    Log.w(TAG, "Timed out while querying ALL");
+    private void queryAll(final MatrixCursor result, String after, final DynamoFuture<Cursor> future) {
+        DynamoFuture<ScanCursor> page = new DynamoFuture<>();
+        scan(ALL, null, after, MAX_PAGE_SIZE, page);
+        page.addCallback(new DynamoFuture.Callback<ScanCursor>() {
+            @Override
+            public void completed(ScanCursor page) {
+                try {
+                    while (page.moveToNext()) {
+                        result.addRow(new String[]{page.getString(0), page.getString(1)});
+                    }
+                    if (page.getNext() == null) {
+                        Log.d(TAG, "Query ALL completed: " + result.getCount());
+                        future.complete(result);
+                    } else {
+                        queryAll(result, page.getNext(), future); // completes on a callback thread, no recursion
+                    }
+                } catch (RuntimeException e) {
+                    future.fail(e);
                 }
+            }
 
-                for (Map.Entry<String, Payload.Value> entry : REPLIES.get(query.getSessionId()).entrySet()) {
-                    result.addRow(new String[]{entry.getKey(), entry.getValue().getValue()});
-                }
+            @Override
+            public void failed(Exception e) {
+                // as before paging, a "*" query answers with what it could read rather than not at all
+                Log.w(TAG, "Query ALL incomplete after " + result.getCount() + " rows", e);
+                future.complete(result);
+            }
+        });
+    }
 
-                return result;
+    /**
+     * One page of the keys in key order, after the key after, or from the start if it is null, and starting with
+     * prefix, if not null. "*" scans the ring, "@" this node. Each node sends up to pageSize of its rows, the
+     * page holds the newest value of each key up to the smallest last key of a node that had more, so a page may
+     * be shorter than pageSize without being the last one. The next page starts after {@link ScanCursor#getNext()}.
+     * A node that does not reply is left out if the other replicas of its ranges did, otherwise the round is run
+     * again without the nodes suspected meanwhile. Fails with a TimeoutException if that does not help either.
+     */
+    public DynamoFuture<ScanCursor> scanAsync(final String scope, final String prefix, final String after, int pageSize) {
+        final DynamoFuture<ScanCursor> future = new DynamoFuture<>();
+        final int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        afterRecovery(new Step<ScanCursor>(future) {
+            @Override
+            void next(boolean complete) {
+                scan(scope, prefix, after, limit, future);
             }
-            case LOCAL: {
-                Log.d(TAG, "QUERY @ LOCAL");
-                MatrixCursor result = new MatrixCursor(new String[]{"key", "value"});
-                try (Cursor cursor = db.all()) {
-                    while (cursor.moveToNext()) {
-                        result.addRow(new String[]{cursor.getString(0), cursor.getString(1)});
+        });
+        return future;
+    }
+
+    private void scan(String scope, String prefix, String after, int limit, DynamoFuture<ScanCursor> future) {
+        scan(scope, prefix, after, limit, future, SCAN_ATTEMPTS);
+    }
+
+    private void scan(final String scope, final String prefix, final String after, final int limit,
+                      final DynamoFuture<ScanCursor> future, final int attempts) {
+        final List<String> others = LOCAL.equals(scope)
+                ? new ArrayList<String>() : DynamoRing.liveNodes(DynamoRing.allOtherNodes(myPort));
+        Payload scan = Payload.scan(myPort, prefix, after, limit);
+        final PendingRequests.Request request = track(scan, others.size(), others.size(), TIMEOUT * 2);
+
+        // the local page goes through the same merge as the replies
+        Map<String, Payload.Value> rows = new HashMap<>();
+        request.bound(scanPage(prefix, after, limit, rows));
+        keepNewest(request.results(), rows);
+
+        sendTo(others, scan);
+        listen(request, TIMEOUT * 2, new Step<ScanCursor>(future) {
+            @Override
+            void next(boolean complete) {
+                if (!complete && !covered(others, request.repliers())) {
+                    // a node that did not reply may hold keys of this page, a token past them would skip those
+                    if (attempts > 1) {
+                        // the timeout is longer than the failure detector takes, a silent node is suspected by now
+                        Log.w(TAG, "Timed out while scanning after " + after + ", scanning again");
+                        scan(scope, prefix, after, limit, future, attempts - 1);
+                    } else {
+                        Log.w(TAG, "Timed out while scanning after " + after);
+                        future.fail(new TimeoutException("Scan after " + after + " timed out, retry from the same key"));
                     }
+                    return;
                 }
-                return result;
+                future.complete(page(request, limit));
             }
-            default: {
-                Log.d(TAG, "QUERY for key " + key);
+        });
+    }
 
-                MatrixCursor result = new MatrixCursor(new String[]{"key", "value"});
+    // true if every key range of a node that did not reply has a replica that did, which sent its keys too.
+    private boolean covered(List<String> asked, Set<String> repliers) {
+        List<String> silent = new ArrayList<>(asked);
+        silent.removeAll(repliers);
+        DynamoRing.Table table = DynamoRing.table();
+        for (int range = 0; range < table.ranges(); range++) {
+            List<String> preferenceList = table.preferenceList(range);
+            if (Collections.disjoint(preferenceList, silent) || preferenceList.contains(myPort)) {
+                continue;
+            }
+            if (Collections.disjoint(preferenceList, repliers)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                String coordinator = DynamoRing.coordinatorForKey(key);
-                List<String> replicas = DynamoRing.replicasForCoordinator(coordinator);
+    // the merged rows up to the bound, tombstones count towards the limit but are left out.
+    private static ScanCursor page(PendingRequests.Request request, int limit) {
+        String bound = request.bound();
+        List<String> keys = new ArrayList<>();
+        Map<String, Payload.Value> results = request.results();
+        synchronized (results) {
+            for (String key : results.keySet()) {
+                if (bound == null || Util.compareKeys(key, bound) <= 0) {
+                    keys.add(key);
+                }
+            }
+        }
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Util.compareKeys(a, b);
+            }
+        });
 
-                Payload replicaQuery2 = track(Payload.queryRequest(myPort, key, REPLICA));
-                sendTo(replicas.get(1), replicaQuery2);
+        ScanCursor page = new ScanCursor(Math.min(keys.size(), limit));
+        String next = bound;
+        for (int i = 0; i < keys.size(); i++) {
+            if (i == limit) {
+                next = keys.get(i - 1);
+                break;
+            }
+            Payload.Value value = results.get(keys.get(i));
+            if (value.getValue() != null) {
+                page.addRow(new String[]{keys.get(i), value.getValue()});
+            }
+        }
+        page.setNext(next);
+        return page;
+    }
+
+    // adds up to limit local rows to rows, returns the last key if there may be more.
+    private String scanPage(String prefix, String after, int limit, Map<String, Payload.Value> rows) {
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        String last = null;
+        try (Cursor cursor = db.scan(prefix, after, limit)) {
+            while (cursor.moveToNext()) {
+                last = cursor.getString(0);
+                rows.put(last, new Payload.Value(cursor.getString(1), cursor.getLong(2)));
+            }
+        }
+        return rows.size() == limit ? last : null;
+    }
 
-                Payload coordinatorQuery = track(Payload.queryRequest(myPort, key, COORDINATOR));
-                sendTo(coordinator, coordinatorQuery);
+    private void query(final String key, final DynamoFuture<Cursor> future) {
+        Log.d(TAG, "QUERY for key " + key);
 
-                Payload replicaQuery1 = track(Payload.queryRequest(myPort, key, REPLICA));
-                sendTo(replicas.get(0), replicaQuery1);
+        // only ask the nodes that are up, unless none is.
+        List<String> preferenceList = DynamoRing.liveNodes(DynamoRing.preferenceListForKey(key));
+        if (preferenceList.isEmpty()) {
+            preferenceList = DynamoRing.preferenceListForKey(key);
+        }
 
-                // wait for reply from responsible nodes
-                if (waitForCompletion(replicaQuery2.getSessionId(), TIMEOUT, TimeUnit.MILLISECONDS)) {
-                    Log.d(TAG, "Received last replica");
+        // one session for all of them, the read is done on the first R replies.
+        int readQuorum = Math.min(DynamoRing.readQuorum(), preferenceList.size());
+        final Payload query = Payload.queryRequest(myPort, key, COORDINATOR);
+        final PendingRequests.Request request = track(query, readQuorum, preferenceList.size(), TIMEOUT);
+        readRepair.track(query.getSessionId());
+
+        // replies after the quorum are still merged, but nobody waits for them.
+        final Step<Cursor> reply = new Step<Cursor>(future) {
+            @Override
+            void next(boolean complete) {
+                if (complete) {
+                    Log.d(TAG, "Received read quorum for " + key);
                 } else {
-                    Log.w(TAG, "TimedOut while waiting for Query Replies from last replica");
+                    Log.w(TAG, "TimedOut while waiting for read quorum for " + key);
                 }
 
-                if (waitForCompletion(coordinatorQuery.getSessionId(), TIMEOUT, TimeUnit.MILLISECONDS)) {
-                    Log.d(TAG, "Received Query Replies from Coordinator");
-                } else {
-                    Log.w(TAG, "TimedOut while waiting for Query Replies from Coordinator");
+                String latestValue = "";
+                Map<String, Payload.Value> replies = request.results();
+                synchronized (replies) {
+                    Payload.Value latest = replies.get(key);
+                    if (latest != null) {
+                        latestValue = latest.getValue();
+                    }
                 }
 
-                if (waitForCompletion(replicaQuery1.getSessionId(), TIMEOUT, TimeUnit.MILLISECONDS)) {
-                    Log.d(TAG, "Received Query Replies from first replica");
-                } else {
-                    Log.w(TAG, "TimedOut while waiting from first replica");
+                // a deleted key reads like a missing one
+                MatrixCursor result = new MatrixCursor(new String[]{"key", "value"});
+                result.addRow(new String[]{key, latestValue == null ? "" : latestValue});
+                // once the slower replicas had time to reply, only the stale ones are updated.
+                readRepair.repair(query.getSessionId(), key, replies, TIMEOUT);
+                future.complete(result);
+            }
+        };
+
+        if (DynamoRing.hedgedReads() && preferenceList.size() > readQuorum) {
+            // the R fastest replicas first, the others only if those are slower than usual.
+            final List<String> fastestFirst = PeerLatency.fastestFirst(preferenceList);
+            final List<String> first = new ArrayList<>(fastestFirst.subList(0, readQuorum));
+            final List<String> backups = new ArrayList<>(fastestFirst.subList(readQuorum, fastestFirst.size()));
+            sendQuery(first, query);
+            final long hedgeDelay = PeerLatency.hedgeDelay(first);
+            request.listen(new Step<Cursor>(future) {
+                @Override
+                void next(boolean complete) {
+                    if (complete) {
+                        reply.done(true);
+                        return;
+                    }
+                    Log.d(TAG, "Hedging read of " + key + " after " + hedgeDelay + "ms");
+                    sendQuery(backups, query);
+                    listen(request, Math.max(0, TIMEOUT - hedgeDelay), reply);
                 }
+            }, hedgeDelay);
+        } else {
+            sendQuery(preferenceList, query);
+            listen(request, TIMEOUT, reply);
+        }
+    }
 
-                Set<UUID> querySessions = new LinkedHashSet<>(3);
-                querySessions.add(replicaQuery2.getSessionId());
-                querySessions.add(coordinatorQuery.getSessionId());
-                querySessions.add(replicaQuery1.getSessionId());
+    /**
+     * Reads many keys at once: each live replica gets one QUERY_KEYS per {@link SimpleDynamoDB#MAX_KEYS} of the
+     * keys it replicates, and the replies are merged as they arrive. Completes once every key has R replies or
+     * every replica answered or timed out, with a row per key, "" for missing ones as in a single key read.
+     */
+    public DynamoFuture<Cursor> queryAsync(final Collection<String> keys) {
+        final DynamoFuture<Cursor> future = new DynamoFuture<>();
+        afterRecovery(new Step<Cursor>(future) {
+            @Override
+            void next(boolean complete) {
+                query(new ArrayList<>(new LinkedHashSet<>(keys)), future);
+            }
+        });
+        return future;
+    }
 
-                Set<Payload.Value> valueSet = new HashSet<>(3);
-                long latestVersion = Long.MIN_VALUE;
-                String latestValue = "";
+    private void query(final List<String> keys, final DynamoFuture<Cursor> future) {
+        final Map<String, AtomicInteger> needed = new HashMap<>(); // <key, replies still needed>
+        Map<String, List<String>> byNode = new HashMap<>(); // <node, keys>
+        for (String key : keys) {
+            List<String> preferenceList = DynamoRing.liveNodes(DynamoRing.preferenceListForKey(key));
+            if (preferenceList.isEmpty()) {
+                preferenceList = DynamoRing.preferenceListForKey(key);
+            }
+            needed.put(key, new AtomicInteger(Math.min(DynamoRing.readQuorum(), preferenceList.size())));
+            for (String node : preferenceList) {
+                List<String> nodeKeys = byNode.get(node);
+                if (nodeKeys == null) {
+                    nodeKeys = new ArrayList<>();
+                    byNode.put(node, nodeKeys);
+                }
+                nodeKeys.add(key);
+            }
+        }
 
-                for (UUID session : querySessions) {
-                    for (Payload.Value v : REPLIES.get(session).values()) {
-                        if (v.getVersion() > latestVersion) {
-                            latestVersion = v.getVersion();
-                            latestValue = v.getValue();
-                        }
-                        valueSet.add(v);
+        final Map<String, Payload.Value> replies = new HashMap<>(); // guarded by itself, see keepNewest
+        final AtomicInteger shortKeys = new AtomicInteger(keys.size());
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                MatrixCursor result = new MatrixCursor(new String[]{"key", "value"});
+                synchronized (replies) {
+                    for (String key : keys) {
+                        Payload.Value latest = replies.get(key);
+                        // a deleted key reads like a missing one
+                        result.addRow(new String[]{key, latest == null || latest.getValue() == null ? "" : latest.getValue()});
                     }
                 }
+                Log.d(TAG, "QUERY of " + keys.size() + " keys done, " + shortKeys.get() + " short of the read quorum");
+                future.complete(result);
+            }
+        };
+        if (keys.isEmpty()) {
+            finish.run();
+            return;
+        }
 
-                if (valueSet.size() > 1) {
-                    Log.d(TAG, key + " Latest value: " + latestValue + " from: " + valueSet);
+        List<String> requestNodes = new ArrayList<>();
+        List<List<String>> requestKeys = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : byNode.entrySet()) {
+            List<String> nodeKeys = entry.getValue();
+            for (int from = 0; from < nodeKeys.size(); from += SimpleDynamoDB.MAX_KEYS) {
+                requestNodes.add(entry.getKey());
+                requestKeys.add(nodeKeys.subList(from, Math.min(nodeKeys.size(), from + SimpleDynamoDB.MAX_KEYS)));
+            }
+        }
+        final AtomicInteger pendingRequests = new AtomicInteger(requestNodes.size());
+        for (int i = 0; i < requestNodes.size(); i++) {
+            final List<String> requested = requestKeys.get(i);
+            Payload query = Payload.queryKeys(myPort, requested);
+            final PendingRequests.Request request = track(query, 1, 1, TIMEOUT);
+            sendTo(requestNodes.get(i), query);
+            listen(request, TIMEOUT, new Step<Cursor>(future) {
+                @Override
+                void next(boolean complete) {
+                    if (complete) {
+                        keepNewest(replies, request.results());
+                        for (String key : requested) {
+                            if (needed.get(key).decrementAndGet() == 0 && shortKeys.decrementAndGet() == 0) {
+                                finish.run();
+                            }
+                        }
+                    }
+                    if (pendingRequests.decrementAndGet() == 0) {
+                        finish.run();
+                    }
                 }
-                result.addRow(new String[]{key, latestValue});
-                if (latestVersion > Long.MIN_VALUE) {
-                    sendTo(DynamoRing.preferenceListForKey(key), Payload.insert(myPort, key, latestValue, Payload.NodeType.UPDATE, latestVersion));
+            });
+        }
+    }
+
+    /**
+     * Adds node to the ring and tells every member, including node. Ranges it now replicates are streamed to it
+     * in the background. Membership changes should be made one at a time.
+     */
+    public void join(String node) {
+        List<String> nodes = new ArrayList<>(DynamoRing.nodes());
+        if (!nodes.contains(node)) {
+            nodes.add(node);
+            announceMembership(nodes);
+        }
+    }
+
+    /**
+     * Removes node from the ring, its ranges are streamed to the nodes that take them over.
+     */
+    public void leave(String node) {
+        List<String> nodes = new ArrayList<>(DynamoRing.nodes());
+        if (nodes.remove(node) && !nodes.isEmpty()) {
+            announceMembership(nodes);
+        }
+    }
+
+    private void announceMembership(List<String> nodes) {
+        Set<String> members = new LinkedHashSet<>(DynamoRing.nodes());
+        long epoch = DynamoRing.epoch() + 1;
+        changeMembership(nodes, epoch);
+        members.addAll(nodes);
+        members.remove(myPort);
+        sendTo(members, Payload.membership(myPort, nodes, epoch));
+    }
+
+    private void changeMembership(List<String> nodes, long epoch) {
+        DynamoRing.Table previous = DynamoRing.table();
+        if (DynamoRing.configure(nodes, epoch)) {
+            DynamoRing.save(context);
+            rebalancer.rebalance(previous, DynamoRing.table());
+        }
+    }
+
+    /**
+     * Sends the write to every replica, listener is called once acks of them acknowledged it or after timeoutMillis.
+     * Slower replicas catch up in the background, a write that does not get enough ACKs is not rolled back.
+     * Writes for offline replicas become hints instead. A hint is only a copy on this node, so it does not count
+     * towards acks: with fewer live replicas than acks the write fails right away.
+     */
+    private void replicate(List<String> replicas, Payload replicaInsert, int acks, long timeoutMillis, PendingRequests.Listener listener) {
+        List<String> live = new ArrayList<>(replicas.size());
+        for (String replica : replicas) {
+            if (DynamoRing.isOffline(replica)) {
+                hints.add(replica, replicaInsert);
+            } else {
+                live.add(replica);
+            }
+        }
+        if (acks <= 0) {
+            sendTo(live, replicaInsert);
+            listener.done(true);
+            return;
+        }
+        Payload tracked = replicaInsert.ack(true);
+        if (live.size() < acks) {
+            Log.w(TAG, "Only " + live.size() + " live replicas for a write quorum of " + acks + ": " + replicaInsert.getKey());
+            sendTo(live, replicaInsert); // still replicated, nobody waits for the ACKs
+            listener.done(false);
+            return;
+        }
+        PendingRequests.Request request = track(tracked, acks, live.size(), timeoutMillis);
+        sendTo(live, tracked);
+        listen(request, timeoutMillis, listener);
+    }
+
+    // stamps each request with its send time, the reply carries it back to measure the round trip.
+    private void sendQuery(List<String> nodes, Payload query) {
+        String coordinator = DynamoRing.coordinatorForKey(query.getKey());
+        for (String node : nodes) {
+            sendTo(node, query.nodeType(node.equals(coordinator) ? COORDINATOR : REPLICA).version(System.nanoTime()));
+        }
+    }
+
+    // keeps the newest version of each key, replies of the replicas arrive in any order.
+    private static void keepNewest(Map<String, Payload.Value> replies, Map<String, Payload.Value> rows) {
+        synchronized (replies) {
+            for (Map.Entry<String, Payload.Value> entry : rows.entrySet()) {
+                HybridClock.observe(entry.getValue().getVersion()); // a write after this read orders after it
+                Payload.Value current = replies.get(entry.getKey());
+                if (current == null || entry.getValue().getVersion() > current.getVersion()) {
+                    replies.put(entry.getKey(), entry.getValue());
                 }
-                return result;
             }
         }
     }
 
     private synchronized void waitForRecovery() {
-        if (recoverySessionId != null) {
+        PendingRequests.Request recovery = this.recovery;
+        if (recovery != null) {
             Log.d(TAG, "WAITING FOR RECOVERY");
-            if (waitForCompletion(recoverySessionId, 5, TimeUnit.SECONDS)) {
-                Log.d(TAG, "RECOVERY COMPLETED");
-            } else {
-                Log.d(TAG, "RECOVERY TIMED-OUT");
-            }
-            recoverySessionId = null;
+            recovered(waitForCompletion(recovery, recoveryWait(), TimeUnit.MILLISECONDS));
         }
     }
 
-    public boolean waitForCompletion(UUID session, long time, TimeUnit timeUnit) {
-        Log.d(TAG, "waitForCompletion " + session + " : " + time + " : " + timeUnit);
-        try {
-            long start = System.nanoTime();
-            if (SESSIONS.get(session).tryAcquire(time, timeUnit)) {
-                Log.d(TAG, "waitForCompletion success took: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
-                return true;
-            } else {
-                Log.w(TAG, "Timed out while waiting for: " + session);
+    // runs step once the catch-up after a restart is done, without blocking until then.
+    private void afterRecovery(final Step<?> step) {
+        final PendingRequests.Request recovery = this.recovery;
+        if (recovery == null) {
+            step.done(true);
+            return;
+        }
+        listen(recovery, recoveryWait(), new PendingRequests.Listener() {
+            @Override
+            public void done(boolean complete) {
+                recovered(complete);
+                step.done(true);
             }
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Interrupted while waiting for: " + session);
+        });
+    }
+
+    private long recoveryWait() {
+        return Math.max(0, recoveryDeadline - System.currentTimeMillis());
+    }
+
+    private void recovered(boolean complete) {
+        if (recovery != null) {
+            Log.d(TAG, complete ? "RECOVERY COMPLETED" : "RECOVERY TIMED-OUT");
+            recovery = null;
+        }
+    }
+
+    // true once enough replies arrived, replies after a timeout count as late.
+    public boolean waitForCompletion(PendingRequests.Request request, long time, TimeUnit timeUnit) {
+        if (request.await(time, timeUnit)) {
+            return true;
         }
+        request.abandon();
         return false;
     }
 
+    // like waitForCompletion, but calls listener instead of blocking.
+    private static void listen(final PendingRequests.Request request, long timeoutMillis, final PendingRequests.Listener listener) {
+        request.listen(new PendingRequests.Listener() {
+            @Override
+            public void done(boolean complete) {
+                if (!complete) {
+                    request.abandon();
+                }
+                listener.done(complete);
+            }
+        }, timeoutMillis);
+    }
+
+    /**
+     * Registers the request before it is sent: waiters are released after needed replies, the replies of the
+     * other expected nodes are still merged until a while after timeoutMillis.
+     */
+    PendingRequests.Request track(Payload request, int needed, int expected, long timeoutMillis) {
+        return pending.track(request.getSessionId(), needed, expected, timeoutMillis + LATE_REPLIES);
+    }
+
+    PendingRequests pending() {
+        return pending;
+    }
 
-    private Payload track(Payload in, int replyCount) {
-        SESSIONS.put(in.getSessionId(), new Semaphore(-1 * (replyCount - 1), true)); // replyCount->permits
-        REPLIES.put(in.getSessionId(), new ConcurrentHashMap<String, Payload.Value>(0));
-        return in;
+    Dispatcher dispatcher() {
+        return dispatcher;
     }
 
-    private Payload track(Payload in) {
-        SESSIONS.put(in.getSessionId(), new Semaphore(0, true));
-        REPLIES.put(in.getSessionId(), new ConcurrentHashMap<String, Payload.Value>(0));
-        return in;
+    /**
+     * Sends the rows of cursor as a stream of bounded chunks, so neither side holds the whole table at once.
+     * Only rows replicated on forNode are sent, unless it is null.
+     */
+    private void streamReply(Payload request, Payload reply, Cursor cursor, String forNode) {
+        Map<String, Payload.Value> rows = new HashMap<>();
+        int bytes = 0;
+        int chunk = 0;
+        while (cursor.moveToNext()) {
+            String key = cursor.getString(0);
+            if (forNode != null && !DynamoRing.preferenceListForKey(key).contains(forNode)) {
+                continue;
+            }
+            String value = cursor.getString(1);
+            rows.put(key, new Payload.Value(value, cursor.getLong(2)));
+            bytes += key.length() + (value == null ? 0 : value.length());
+            if (rows.size() >= CHUNK_ROWS || bytes >= CHUNK_BYTES) {
+                reply(request, reply.chunk(chunk++, false, rows));
+                rows = new HashMap<>();
+                bytes = 0;
+            }
+        }
+        reply(request, reply.chunk(chunk, true, rows)); // end marker, may carry the last rows
+        Log.d(TAG, "Streamed " + (chunk + 1) + " chunks to: " + request.getFromPort());
     }
 
     private void sendAck(Payload payload) {
         String fromPort = payload.getFromPort();
         Payload ack = payload.messageType(Payload.MessageType.ACK).fromPort(myPort);
-        sendTo(fromPort, ack);
+        reply(payload, ack);
         Log.d(TAG, "Sent ACK to:" + fromPort + ": " + payload);
     }
 
+    // replies go back on the connection the request came in on, the requester matches them by session id.
+    void reply(Payload request, Payload reply) {
+        PeerChannel origin = request.getOrigin();
+        if (origin != null && origin.isOpen()) {
+            try {
+                origin.write(reply);
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot reply on origin connection, sending to: " + request.getFromPort(), e);
+            }
+        }
+        sendTo(request.getFromPort(), reply);
+    }
+
+    // keeps the newer of each row and the local one.
+    void merge(Map<String, Payload.Value> rows) {
+        db.beginTransaction(); // one commit for all rows instead of one each
+        try {
+            for (Map.Entry<String, Payload.Value> entry : rows.entrySet()) {
+                dbInsert(entry);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void dbInsert(Map.Entry<String, Payload.Value> entry) {
-        ContentValues cv = new ContentValues(1);
-        cv.put("key", entry.getKey());
-        cv.put("value", entry.getValue().getValue());
-        cv.put("version", entry.getValue().getVersion());
-        db.insert(cv);
-        Log.d(TAG, "Inserted: " + cv);
+        dbInsert(entry.getKey(), entry.getValue().getValue(), entry.getValue().getVersion());
     }
 
     private void dbInsert(Payload payload) {
-        ContentValues cv = new ContentValues(1);
-        cv.put("key", payload.getKey());
-        cv.put("value", payload.getValue());
-        cv.put("version", payload.getVersion());
-        db.insert(cv);
-        Log.d(TAG, "Inserted: " + cv);
+        dbInsert(payload.getKey(), payload.getValue(), payload.getVersion());
     }
 
-    private long newVersionNumber(String key) {
-        long versionL = 1;
-        try (Cursor cursor = db.version(key)) {
-            while (cursor.moveToNext()) {
-                versionL = cursor.getLong(0) + 1;
-                Log.d(TAG, "NEW VERSION: " + versionL + " " + key);
+    // every local write goes through here or dbDelete, to keep the merkle trees in step. The trees learn of a write
+    // in its transaction, so a rebuild reads each row either before its change reaches them or after.
+    // a write older than the stored row is dropped, so replicas end up with the newest version in any order.
+    private void dbInsert(String key, String value, long version) {
+        HybridClock.observe(version);
+        db.beginTransaction();
+        try {
+            long previous = db.write(key, value, version);
+            if (previous != SimpleDynamoDB.NOT_WRITTEN) {
+                antiEntropy.written(key, previous, version);
+                Log.d(TAG, "Inserted: " + key + " " + value + " " + version);
+            } else {
+                Log.d(TAG, "Kept newer row of " + key + " than " + version);
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        return versionL;
+    }
+
+    private void dbDelete(String key, long version) {
+        HybridClock.observe(version);
+        db.beginTransaction();
+        try {
+            long previous = db.tombstone(key, version);
+            if (previous != SimpleDynamoDB.NOT_WRITTEN) {
+                antiEntropy.written(key, previous, version);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // removes the row of a key this node no longer replicates, unlike a delete it leaves no tombstone.
+    void forget(String key) {
+        db.beginTransaction();
+        try {
+            long previous = db.version(key);
+            db.delete(key);
+            antiEntropy.written(key, previous, 0);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private int drop() {
+        int dropped = db.drop();
+        antiEntropy.cleared();
+        return dropped;
     }
 
     private void sendTo(Collection<String> nodes, Payload p) {
@@ -538,8 +1251,32 @@ public class Dynamo {
         }
     }
 
-    private void sendTo(String node, Payload p) {
+    void sendTo(String node, Payload p) {
         Log.d(TAG, "Sending to: " + node + " : " + p);
-        new ClientTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, new Pair<>(node, p));
+        SendLane.send(node, p);
+    }
+
+    /**
+     * One step of an asynchronous operation, run once the replies it waits for are in. An exception fails the
+     * operation instead of leaving its future pending.
+     */
+    private abstract static class Step<T> implements PendingRequests.Listener {
+        private final DynamoFuture<T> future;
+
+        Step(DynamoFuture<T> future) {
+            this.future = future;
+        }
+
+        @Override
+        public void done(boolean complete) {
+            try {
+                next(complete);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Operation failed", e);
+                future.fail(e);
+            }
+        }
+
+        abstract void next(boolean complete);
     }
 }
@@ -0,0 +1,139 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous {@link Dynamo} operation, completed by the thread that handles the last reply or timeout
+ * it waited for. Callbacks run on that thread and must not block, {@link #join()} is for callers that want to wait.
+ */
+public class DynamoFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+        void completed(T result);
+
+        void failed(Exception e);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callback<T>> callbacks = new ArrayList<>(1); // guarded by this
+    private T result;
+    private Exception failure;
+
+    public static <T> DynamoFuture<T> completed(T result) {
+        DynamoFuture<T> future = new DynamoFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    public void complete(T result) {
+        List<Callback<T>> callbacks;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.result = result;
+            done.countDown();
+            callbacks = new ArrayList<>(this.callbacks);
+            this.callbacks.clear();
+        }
+        for (Callback<T> callback : callbacks) {
+            callback.completed(result);
+        }
+    }
+
+    public void fail(Exception e) {
+        List<Callback<T>> callbacks;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.failure = e;
+            done.countDown();
+            callbacks = new ArrayList<>(this.callbacks);
+            this.callbacks.clear();
+        }
+        for (Callback<T> callback : callbacks) {
+            callback.failed(e);
+        }
+    }
+
+    /**
+     * Calls callback once the operation is done, right away if it already is.
+     */
+    public DynamoFuture<T> addCallback(Callback<T> callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        if (failure != null) {
+            callback.failed(failure);
+        } else {
+            callback.completed(result);
+        }
+        return this;
+    }
+
+    // operations time out on their own, so this always returns.
+    public T join() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false; // messages already sent cannot be taken back
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+}
@@ -1,146 +1,182 @@
 package edu.buffalo.cse.cse486586.simpledynamo;
 
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 
-import static edu.buffalo.cse.cse486586.simpledynamo.Util.genHash;
-
+/**
+ * Ring membership and key routing. The initial ring comes from assets/ring.properties, join and leave
+ * change it at runtime, each change bumps the epoch and the newest epoch wins.
+ */
 public class DynamoRing {
     private static final String TAG = DynamoRing.class.getName();
+    private static final String CONFIG = "ring.properties";
+    private static final String PREFERENCES = "dynamo_ring";
 
     // Number of replicas including the coordinator
-    private static final int N = 3;
-
-    // the actual ring, hashed and sorted using SHA1
-    private static final List<String> RING;
+    public static final int DEFAULT_REPLICATION_FACTOR = 3;
+    // Ring positions per node. One keeps the placement of the spec, more spread keys more evenly.
+    public static final int DEFAULT_TOKENS_PER_NODE = 1;
+    // replicas that must answer a read / acknowledge a write, R + W > N makes every read see the latest write.
+    public static final int DEFAULT_READ_QUORUM = 2;
+    public static final int DEFAULT_WRITE_QUORUM = 2;
+    // share of reads that repair stale replicas, the rest leave them to anti-entropy.
+    public static final double DEFAULT_READ_REPAIR_CHANCE = 1.0;
+    // reads ask R replicas and the others only once those are late, instead of all N at once.
+    public static final boolean DEFAULT_HEDGED_READS = false;
 
-    // Number of distinct nodes
-    private static final List<String> NODES;
+    private static volatile int READ_QUORUM = DEFAULT_READ_QUORUM;
+    private static volatile int WRITE_QUORUM = DEFAULT_WRITE_QUORUM;
+    private static volatile double READ_REPAIR_CHANCE = DEFAULT_READ_REPAIR_CHANCE;
+    private static volatile boolean HEDGED_READS = DEFAULT_HEDGED_READS;
 
-    // Pre-computed hashes
-    private static final Map<String, String> NODES_HASH; // <port,  hash>
-    private static final Map<String, String> HASH_NODE; // <hash,  port>
+    private static volatile Table TABLE;
 
     private static final CopyOnWriteArraySet<String> OFFLINE_NODES = new CopyOnWriteArraySet<>();
+    private static final List<LivenessListener> LISTENERS = new CopyOnWriteArrayList<>();
 
     static {
-        RING = new ArrayList<String>(5) {
-            // NOTE: this is terrible!, violates interface contract.
-            // TODO: Use a Ring-buffer.
-            @Override
-            public String get(int index) {
-                return (index < 0) ? super.get(size() + index) : super.get(index % size());
-            }
+        configure(Arrays.asList("11108", "11112", "11116", "11120", "11124"), DEFAULT_TOKENS_PER_NODE, DEFAULT_REPLICATION_FACTOR);
+    }
 
-            @Override
-            public String toString() {
-                if (isEmpty()) {
-                    return "[]";
-                }
+    /**
+     * Rebuilds the ring, routing calls made meanwhile keep using the previous ring.
+     */
+    public static synchronized void configure(List<String> nodes, int tokensPerNode, int replicationFactor) {
+        TABLE = new Table(nodes, tokensPerNode, replicationFactor, Partitioner.SHA1, 0);
+        Log.d(TAG, "Dynamo Ring: " + TABLE);
+    }
 
-                StringBuilder buffer = new StringBuilder();
-                buffer.append('[');
-                Iterator<String> it = iterator();
-                while (it.hasNext()) {
-                    String next = it.next();
-                    if (next != null) {
-                        buffer.append(HASH_NODE.get(next));
-                    }
-                    if (it.hasNext()) {
-                        buffer.append(" -> "); // pretty print
-                    }
-                }
-                buffer.append(']');
-                return buffer.toString();
-            }
-        };
+    /**
+     * Loads the ring from assets/ring.properties, then the last membership this node saw, if any.
+     */
+    public static synchronized void configure(Context context) {
+        Properties config = new Properties();
+        try (InputStream in = context.getAssets().open(CONFIG)) {
+            config.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, "No " + CONFIG + ", using the default ring", e);
+        }
+        Table table = TABLE;
+        List<String> nodes = split(config.getProperty("nodes", join(table.nodes)));
+        int tokensPerNode = Integer.parseInt(config.getProperty("tokensPerNode", String.valueOf(table.tokensPerNode)));
+        int replicationFactor = Integer.parseInt(config.getProperty("replicationFactor", String.valueOf(table.configuredReplicationFactor)));
+        Partitioner partitioner = "murmur3".equals(config.getProperty("partitioner")) ? Partitioner.MURMUR3 : Partitioner.SHA1;
+        READ_QUORUM = Integer.parseInt(config.getProperty("readQuorum", String.valueOf(DEFAULT_READ_QUORUM)));
+        WRITE_QUORUM = Integer.parseInt(config.getProperty("writeQuorum", String.valueOf(DEFAULT_WRITE_QUORUM)));
+        READ_REPAIR_CHANCE = Double.parseDouble(config.getProperty("readRepairChance", String.valueOf(DEFAULT_READ_REPAIR_CHANCE)));
+        HEDGED_READS = Boolean.parseBoolean(config.getProperty("hedgedReads", String.valueOf(DEFAULT_HEDGED_READS)));
 
-        NODES = new ArrayList<>(5);
-        NODES.add("11108");
-        NODES.add("11112");
-        NODES.add("11116");
-        NODES.add("11120");
-        NODES.add("11124");
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        long epoch = preferences.getLong("epoch", 0);
+        if (epoch > 0) {
+            nodes = split(preferences.getString("nodes", join(nodes)));
+        }
+        TABLE = new Table(nodes, tokensPerNode, replicationFactor, partitioner, epoch);
+        Log.d(TAG, "Dynamo Ring: " + TABLE);
+    }
 
-        NODES_HASH = new HashMap<>(5);
-        HASH_NODE = new HashMap<>(5);
-        for (String node : NODES) {
-            String hash = genHash(String.valueOf(Integer.valueOf(node) / 2));
+    /**
+     * Changes the membership if epoch is newer than the current one, false if it is not.
+     */
+    public static synchronized boolean configure(List<String> nodes, long epoch) {
+        Table table = TABLE;
+        if (epoch <= table.epoch) {
+            return false;
+        }
+        TABLE = new Table(nodes, table.tokensPerNode, table.configuredReplicationFactor, table.partitioner, epoch);
+        OFFLINE_NODES.retainAll(nodes);
+        Log.d(TAG, "Dynamo Ring changed: " + TABLE);
+        return true;
+    }
 
-            RING.add(hash);
+    // so a restarted node starts from the membership it last saw.
+    public static void save(Context context) {
+        Table table = TABLE;
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putString("nodes", join(table.nodes))
+                .putLong("epoch", table.epoch)
+                .apply();
+    }
 
-            NODES_HASH.put(node, hash);
-            HASH_NODE.put(hash, node);
-        }
+    public static Table table() {
+        return TABLE;
+    }
 
-        Collections.sort(RING);
-        Log.d(TAG, "Dynamo Ring: " + RING);
+    public static List<String> nodes() {
+        return TABLE.nodes;
     }
 
-    public static LinkedHashSet<String> preferenceListForKey(String key) {
-        LinkedHashSet<String> s = new LinkedHashSet<>(N + 1);
-        String coordinator = coordinatorForKey(key);
-        s.add(coordinator);
-        s.addAll(replicasForCoordinator(coordinator));
-        return s;
+    public static long epoch() {
+        return TABLE.epoch;
     }
 
-    public static LinkedHashSet<String> preferenceListForNode(String node) {
-        LinkedHashSet<String> s = new LinkedHashSet<>(N);
-        s.add(node);
-        s.addAll(replicasForCoordinator(node));
-        return s;
+    public static int replicationFactor() {
+        return TABLE.replicationFactor;
     }
 
-    public static String coordinatorForKey(String key) {
-        String keyHash = genHash(key);
+    public static int readQuorum() {
+        return Math.max(1, Math.min(READ_QUORUM, replicationFactor()));
+    }
 
-        for (String nodeHash : RING) {
-            if (keyHash.compareTo(nodeHash) <= 0) {
-                return HASH_NODE.get(nodeHash);
-            }
-        }
-        return HASH_NODE.get(RING.get(0));
+    public static int writeQuorum() {
+        return Math.max(1, Math.min(WRITE_QUORUM, replicationFactor()));
     }
 
-    public static List<String> replicasForCoordinator(String coordinator) {
-        int coordinatorIndex = RING.indexOf(NODES_HASH.get(coordinator));
-        List<String> replicas = new ArrayList<>(N - 1);
-        for (int i = 1; i <= (N - 1); i++) {
-            String node = HASH_NODE.get(RING.get(coordinatorIndex + i));
-            replicas.add(node);
-        }
-        return replicas;
+    public static double readRepairChance() {
+        return READ_REPAIR_CHANCE;
     }
 
+    public static boolean hedgedReads() {
+        return HEDGED_READS;
+    }
+
+    public static List<String> preferenceListForKey(String key) {
+        return TABLE.preferenceListForKey(key);
+    }
+
+    public static String coordinatorForKey(String key) {
+        Table table = TABLE;
+        return table.owners[table.position(table.partitioner.token(key))];
+    }
+
+    public static List<String> replicasForKey(String key) {
+        Table table = TABLE;
+        return table.replicas.get(table.position(table.partitioner.token(key)));
+    }
+
+    /**
+     * Nodes that replicate any key range this node replicates.
+     */
     public static List<String> recoveryNodes(String port) {
-        int index = RING.indexOf(NODES_HASH.get(port));
-        List<String> nodes = new ArrayList<>(4);
-        // add successors/replicas
-        for (int i = 1; i <= (N - 1); i++) {
-            String node = HASH_NODE.get(RING.get(index + i));
-            nodes.add(node);
-        }
-        // add predecessors
-        for (int i = (N - 1); i > 0; i--) {
-            String node = HASH_NODE.get(RING.get(index - i));
-            nodes.add(node);
+        Table table = TABLE;
+        Set<String> nodes = new LinkedHashSet<>();
+        for (List<String> preferenceList : table.preferenceLists) {
+            if (preferenceList.contains(port)) {
+                nodes.addAll(preferenceList);
+            }
         }
+        nodes.remove(port);
         Log.d(TAG, "Recovery nodes for: " + port + " : " + nodes);
-        return nodes;
+        return new ArrayList<>(nodes);
     }
 
     public static List<String> allOtherNodes(String me) { // all other nodes except this node
-        List<String> others = new ArrayList<>(5);
-        for (String node : NODES) {
+        List<String> nodes = TABLE.nodes;
+        List<String> others = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
             if (!node.equals(me)) {
                 others.add(node);
             }
@@ -149,20 +185,29 @@ public class DynamoRing {
     }
 
     public static int liveNodeCount() {
-        return NODES.size() - OFFLINE_NODES.size();
+        return TABLE.nodes.size() - OFFLINE_NODES.size();
     }
 
+    /**
+     * True if the last send to node failed or the FailureDetector suspects it.
+     */
     public static boolean isOffline(String node) {
         return OFFLINE_NODES.contains(node);
     }
 
     public static void markOnline(String node) {
-        if (OFFLINE_NODES.contains(node)) {
+        if (OFFLINE_NODES.remove(node)) {
             Log.e(TAG, "ONLINE: node :" + node);
-            OFFLINE_NODES.remove(node);
+            for (LivenessListener listener : LISTENERS) {
+                listener.online(node);
+            }
         }
     }
 
+    public static void addListener(LivenessListener listener) {
+        LISTENERS.add(listener);
+    }
+
     public static void markOffline(String node) {
         if (OFFLINE_NODES.add(node)) {
             Log.e(TAG, "OFFLINE: node :" + node);
@@ -178,4 +223,163 @@ public class DynamoRing {
         }
         return online;
     }
+
+    public static List<String> liveNodes(List<String> nodes) {
+        List<String> live = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
+            if (!isOffline(node)) {
+                live.add(node);
+            }
+        }
+        return live;
+    }
+
+    public static String join(List<String> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (String node : nodes) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(node);
+        }
+        return sb.toString();
+    }
+
+    public static List<String> split(String nodes) {
+        List<String> list = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (!node.trim().isEmpty()) {
+                list.add(node.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Told when a node that was offline is back, on the thread that noticed it, so it must not block.
+     */
+    public interface LivenessListener {
+        void online(String node);
+    }
+
+    /**
+     * Immutable ring: positions sorted by the token of the partitioner, each node owns tokensPerNode positions.
+     * Preference lists are pre-computed per position and skip positions of nodes already on the list,
+     * so the replicas of a key are distinct nodes and routing a key does not allocate.
+     */
+    public static class Table {
+        private final List<String> nodes;
+        private final long epoch;
+        private final int tokensPerNode;
+        private final Partitioner partitioner;
+        private final int configuredReplicationFactor;
+        private final int replicationFactor; // at most the number of nodes
+        // tokens are stored with the sign bit flipped, so signed order is the unsigned order of the hashes.
+        private final long[] tokens;
+        private final String[] owners; // <position, port>
+        private final List<List<String>> preferenceLists; // <position, coordinator followed by its replicas>
+        private final List<List<String>> replicas; // <position, replicas>
+
+        private Table(List<String> nodes, int tokensPerNode, int replicationFactor, Partitioner partitioner, long epoch) {
+            this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+            this.epoch = epoch;
+            this.tokensPerNode = tokensPerNode;
+            this.partitioner = partitioner;
+            this.configuredReplicationFactor = replicationFactor;
+            this.replicationFactor = Math.min(replicationFactor, nodes.size());
+
+            int size = nodes.size() * tokensPerNode;
+            VirtualNode[] ring = new VirtualNode[size];
+            int i = 0;
+            for (String node : nodes) {
+                for (int t = 0; t < tokensPerNode; t++) {
+                    ring[i++] = new VirtualNode(node, partitioner.token(tokenInput(node, t)) ^ Long.MIN_VALUE);
+                }
+            }
+            Arrays.sort(ring);
+
+            tokens = new long[size];
+            owners = new String[size];
+            for (i = 0; i < size; i++) {
+                tokens[i] = ring[i].token;
+                owners[i] = ring[i].node;
+            }
+
+            List<List<String>> preferenceLists = new ArrayList<>(size);
+            List<List<String>> replicas = new ArrayList<>(size);
+            for (i = 0; i < size; i++) {
+                List<String> preferenceList = new ArrayList<>(this.replicationFactor);
+                for (int j = 0; j < size && preferenceList.size() < this.replicationFactor; j++) {
+                    String node = owners[(i + j) % size];
+                    if (!preferenceList.contains(node)) {
+                        preferenceList.add(node);
+                    }
+                }
+                preferenceLists.add(Collections.unmodifiableList(preferenceList));
+                replicas.add(Collections.unmodifiableList(new ArrayList<>(preferenceList.subList(1, preferenceList.size()))));
+            }
+            this.preferenceLists = Collections.unmodifiableList(preferenceLists);
+            this.replicas = Collections.unmodifiableList(replicas);
+        }
+
+        public List<String> nodes() {
+            return nodes;
+        }
+
+        public long epoch() {
+            return epoch;
+        }
+
+        public List<String> preferenceListForKey(String key) {
+            return preferenceLists.get(position(partitioner.token(key)));
+        }
+
+        // key ranges are numbered by the ring position that ends them
+        public int ranges() {
+            return tokens.length;
+        }
+
+        public int range(String key) {
+            return position(partitioner.token(key));
+        }
+
+        public List<String> preferenceList(int range) {
+            return preferenceLists.get(range);
+        }
+
+        // the first token of a node is the hash of its emulator id, as in the spec.
+        private static String tokenInput(String node, int t) {
+            String id = String.valueOf(Integer.valueOf(node) / 2);
+            return t == 0 ? id : id + "#" + t;
+        }
+
+        // first position whose token is not below the key token, wrapping around the ring.
+        private int position(long token) {
+            int index = Arrays.binarySearch(tokens, token ^ Long.MIN_VALUE);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index == tokens.length ? 0 : index;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(owners).replace(", ", " -> ") + " N=" + replicationFactor + " " + partitioner + " epoch=" + epoch;
+        }
+    }
+
+    private static class VirtualNode implements Comparable<VirtualNode> {
+        private final String node;
+        private final long token;
+
+        private VirtualNode(String node, long token) {
+            this.node = node;
+            this.token = token;
+        }
+
+        @Override
+        public int compareTo(VirtualNode another) {
+            return token < another.token ? -1 : (token == another.token ? 0 : 1);
+        }
+    }
 }
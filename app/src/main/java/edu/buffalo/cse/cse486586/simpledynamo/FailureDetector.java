@@ -0,0 +1,95 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps {@link DynamoRing#isOffline(String)} up to date without waiting for requests to time out.
+ * Every node sends a HEARTBEAT to its peers each {@link #INTERVAL}, and any message from a peer counts as a heartbeat.
+ * <p>
+ * Suspicion is phi accrual with exponentially distributed arrivals: phi = silence / (mean interval * ln 10),
+ * i.e. a peer is suspected once the odds that it is only slow drop below 10^-{@link #PHI_THRESHOLD}.
+ * A suspected peer is back online as soon as anything from it arrives.
+ */
+class FailureDetector implements Runnable {
+    private static final String TAG = FailureDetector.class.getName();
+    public static final long INTERVAL = 200; // ms
+    private static final double PHI_THRESHOLD = 3; // about 1.4 s of silence at the heartbeat rate
+    private static final double WEIGHT = 0.1; // of a new interval in the mean
+
+    private static final ConcurrentMap<String, Arrival> ARRIVALS = new ConcurrentHashMap<>(); // <port, arrivals>
+
+    private final String myPort;
+    private final SimpleDynamoDB db;
+
+    private FailureDetector(String myPort, SimpleDynamoDB db) {
+        this.myPort = myPort;
+        this.db = db;
+    }
+
+    public static void start(String myPort, SimpleDynamoDB db) {
+        Thread thread = new Thread(new FailureDetector(myPort, db), "FailureDetector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void heard(String node) {
+        if (node == null) {
+            return;
+        }
+        Arrival arrival = arrival(node);
+        synchronized (arrival) {
+            long now = System.nanoTime();
+            double interval = TimeUnit.NANOSECONDS.toMillis(now - arrival.last);
+            arrival.mean = arrival.mean + WEIGHT * (interval - arrival.mean);
+            arrival.last = now;
+        }
+        DynamoRing.markOnline(node);
+    }
+
+    public static double phi(String node) {
+        Arrival arrival = arrival(node);
+        synchronized (arrival) {
+            // a busy peer sends far more often than heartbeats, never expect it faster than that.
+            double mean = Math.max(arrival.mean, INTERVAL);
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrival.last) / (mean * Math.log(10));
+        }
+    }
+
+    private static Arrival arrival(String node) {
+        Arrival arrival = ARRIVALS.get(node);
+        if (arrival == null) {
+            ARRIVALS.putIfAbsent(node, new Arrival());
+            arrival = ARRIVALS.get(node);
+        }
+        return arrival;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            for (String node : DynamoRing.allOtherNodes(myPort)) {
+                SendLane.send(node, Payload.heartbeat(myPort, db.lastUpdated(), DynamoRing.epoch()));
+                if (!DynamoRing.isOffline(node) && phi(node) > PHI_THRESHOLD) {
+                    Log.w(TAG, "Suspecting " + node + " phi: " + phi(node));
+                    DynamoRing.markOffline(node);
+                }
+            }
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "FailureDetector interrupted");
+                return;
+            }
+        }
+    }
+
+    private static class Arrival {
+        // peers that were never heard from count from our start, so they are not suspected right away.
+        private long last = System.nanoTime();
+        private double mean = INTERVAL; // ms
+    }
+}
@@ -0,0 +1,166 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire framing: every message is a 4 byte big-endian body length followed by the body,
+ * so one connection can carry many messages back-to-back.
+ * <p>
+ * Bodies of at least {@link #COMPRESSION_THRESHOLD} bytes, e.g. recovery and query-all chunks, are DEFLATE
+ * compressed if that makes them smaller. The top bit of the length marks a compressed frame, whose body
+ * starts with the uncompressed length. Each frame says whether it is compressed, so peers need not agree up-front.
+ */
+public class Frame {
+    public static final int HEADER_SIZE = 4;
+    // guards against a corrupted header making us allocate the whole heap.
+    public static final int MAX_BODY_SIZE = 32 * 1024 * 1024;
+    // smaller frames, like ACKs, are not worth the CPU.
+    public static final int COMPRESSION_THRESHOLD = 4 * 1024;
+    private static final int COMPRESSED = 0x80000000;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    public static void write(OutputStream out, byte[] body) throws IOException {
+        write(out, ByteBuffer.wrap(body));
+    }
+
+    // body must be array backed, e.g. from PayloadCodec.encode
+    public static void write(OutputStream out, ByteBuffer body) throws IOException {
+        for (ByteBuffer buffer : encode(body)) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+    }
+
+    /**
+     * Frames an array backed body, returns the header and the body to write after it.
+     */
+    public static ByteBuffer[] encode(ByteBuffer body) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer compressed = body.remaining() >= COMPRESSION_THRESHOLD ? compress(body) : null;
+        if (compressed != null) {
+            header.putInt(0, compressed.remaining() | COMPRESSED);
+            return new ByteBuffer[]{header, compressed};
+        }
+        header.putInt(0, body.remaining());
+        return new ByteBuffer[]{header, body};
+    }
+
+    // returns the uncompressed length followed by the DEFLATE stream, or null if that is not smaller than body.
+    private static ByteBuffer compress(ByteBuffer body) {
+        int length = body.remaining();
+        byte[] out = new byte[length];
+        ByteBuffer.wrap(out).putInt(length);
+
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(body.array(), body.arrayOffset() + body.position(), length);
+            deflater.finish();
+            int size = HEADER_SIZE + deflater.deflate(out, HEADER_SIZE, length - HEADER_SIZE);
+            return deflater.finished() ? ByteBuffer.wrap(out, 0, size) : null;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Incrementally splits a byte stream into frame bodies, bytes of a partial frame are kept until the rest arrives.
+     */
+    public static class Decoder {
+        private static final int INITIAL_CAPACITY = 4 * 1024;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY); // always in write mode
+        private int bodyLength = -1; // length of the frame being read, -1 while waiting for a header
+        private boolean compressed = false;
+        private Inflater inflater;
+
+        public void decode(ByteBuffer in, List<byte[]> out) throws StreamCorruptedException {
+            while (in.hasRemaining()) {
+                if (bodyLength < 0) {
+                    if (!fill(in, HEADER_SIZE)) {
+                        return;
+                    }
+                    buffer.flip();
+                    int header = buffer.getInt();
+                    buffer.clear();
+                    compressed = (header & COMPRESSED) != 0;
+                    bodyLength = header & ~COMPRESSED;
+                    if (bodyLength > MAX_BODY_SIZE) {
+                        throw new StreamCorruptedException("Invalid frame length: " + bodyLength);
+                    }
+                    ensureCapacity(bodyLength);
+                }
+                if (!fill(in, bodyLength)) {
+                    return;
+                }
+                buffer.flip();
+                out.add(compressed ? inflate(buffer) : body(buffer));
+                buffer.clear();
+                bodyLength = -1;
+            }
+        }
+
+        private byte[] body(ByteBuffer frame) {
+            byte[] body = new byte[frame.remaining()];
+            frame.get(body);
+            return body;
+        }
+
+        private byte[] inflate(ByteBuffer frame) throws StreamCorruptedException {
+            if (frame.remaining() < HEADER_SIZE) {
+                throw new StreamCorruptedException("Truncated compressed frame");
+            }
+            int length = frame.getInt();
+            if (length < 0 || length > MAX_BODY_SIZE) {
+                throw new StreamCorruptedException("Invalid uncompressed length: " + length);
+            }
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            byte[] body = new byte[length];
+            try {
+                inflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                if (inflater.inflate(body) != length || !inflater.finished()) {
+                    throw new StreamCorruptedException("Compressed frame does not match its length: " + length);
+                }
+            } catch (DataFormatException e) {
+                throw new StreamCorruptedException("Cannot inflate frame: " + e.getMessage());
+            } finally {
+                inflater.reset();
+            }
+            return body;
+        }
+
+        // copies from in until buffer holds size bytes, returns false if in ran out first.
+        private boolean fill(ByteBuffer in, int size) {
+            int missing = size - buffer.position();
+            if (missing > 0) {
+                int n = Math.min(missing, in.remaining());
+                int limit = in.limit();
+                in.limit(in.position() + n);
+                buffer.put(in);
+                in.limit(limit);
+            }
+            return buffer.position() == size;
+        }
+
+        private void ensureCapacity(int size) {
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            } else if (buffer.capacity() > INITIAL_CAPACITY && size <= INITIAL_CAPACITY) {
+                buffer = ByteBuffer.allocate(INITIAL_CAPACITY); // release a large buffer after a bulk transfer
+            }
+        }
+    }
+}
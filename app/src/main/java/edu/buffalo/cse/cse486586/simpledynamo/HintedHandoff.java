@@ -0,0 +1,125 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes meant for nodes that are down are kept in the hints table of the node that took the write over, and
+ * replayed in batches as soon as the node is back. Hints are deleted only once the node acknowledged them, so they
+ * survive a restart of either side. Hints that could not be delivered are retried every {@link #RETRY_INTERVAL}.
+ */
+class HintedHandoff implements Runnable, DynamoRing.LivenessListener, SendLane.DropListener {
+    private static final String TAG = HintedHandoff.class.getName();
+    private static final int BATCH_ROWS = 128;
+    private static final long RETRY_INTERVAL = 10 * 1000; // ms
+
+    private final Dynamo dynamo;
+    private final SimpleDynamoDB db;
+    private final String myPort;
+    private final BlockingQueue<String> online = new LinkedBlockingQueue<>();
+
+    public HintedHandoff(Dynamo dynamo, SimpleDynamoDB db, String myPort) {
+        this.dynamo = dynamo;
+        this.db = db;
+        this.myPort = myPort;
+    }
+
+    public void start() {
+        DynamoRing.addListener(this);
+        SendLane.setDropListener(this);
+        Thread thread = new Thread(this, "HintedHandoff");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void add(String node, Payload write) {
+        db.addHint(node, write.getKey(), write.getValue(), write.getVersion());
+        Log.d(TAG, "Hinted write of " + write.getKey() + " for " + node);
+    }
+
+    // replica writes that could not be sent become hints, other senders wait for ACKs and retry themselves.
+    @Override
+    public void dropped(String node, Payload payload) {
+        if (payload.getNodeType() != Payload.NodeType.REPLICA) {
+            return;
+        }
+        switch (payload.getMessageType()) {
+            case INSERT:
+            case DELETE: {
+                add(node, payload); // a delete has no value, it is replayed as a tombstone
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void online(String node) {
+        online.offer(node);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                String node = online.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                if (node != null) {
+                    replay(node);
+                    continue;
+                }
+                try (Cursor cursor = db.hintedNodes()) {
+                    while (cursor.moveToNext()) {
+                        if (!DynamoRing.isOffline(cursor.getString(0))) {
+                            online.offer(cursor.getString(0));
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "HintedHandoff interrupted");
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "HintedHandoff Exception", e);
+            }
+        }
+    }
+
+    // sends the hints of node oldest first, one acknowledged batch at a time, stops at the first batch without ACK.
+    private void replay(String node) {
+        int replayed = 0;
+        while (!DynamoRing.isOffline(node)) {
+            Map<String, Payload.Value> rows = new HashMap<>();
+            long upToId = -1;
+            try (Cursor cursor = db.hints(node, BATCH_ROWS)) {
+                while (cursor.moveToNext()) {
+                    upToId = cursor.getLong(0);
+                    Payload.Value value = new Payload.Value(cursor.getString(2), cursor.getLong(3));
+                    Payload.Value current = rows.get(cursor.getString(1));
+                    if (current == null || value.getVersion() > current.getVersion()) {
+                        rows.put(cursor.getString(1), value);
+                    }
+                }
+            }
+            if (upToId < 0) {
+                break;
+            }
+
+            Payload handoff = Payload.handoff(myPort, rows).ack(true);
+            PendingRequests.Request request = dynamo.track(handoff, 1, 1, Dynamo.TIMEOUT * 2);
+            dynamo.sendTo(node, handoff);
+            if (!dynamo.waitForCompletion(request, Dynamo.TIMEOUT * 2, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Hint replay to " + node + " timed out, retrying later");
+                break;
+            }
+            db.deleteHints(node, upToId);
+            replayed += rows.size();
+        }
+        if (replayed > 0) {
+            Log.d(TAG, "Replayed " + replayed + " hinted writes to " + node);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock for write versions: 44 bits of wall clock ms, a 4 bit counter for writes within the same ms
+ * or while the wall clock lags behind versions seen from peers, and the 16 bit port as node id. More writes in a ms
+ * carry into the ms bits, the clock runs ahead until the wall clock catches up. Versions need no read of the store,
+ * never repeat on one node and never collide between nodes, since ports are unique, so the newest version of a key
+ * wins everywhere the same way. Versions seen in writes and replies of peers are observed, a later local write
+ * orders after them.
+ */
+final class HybridClock {
+    private static final int NODE_BITS = 16;
+    private static final int LOGICAL_BITS = 4; // with NODE_BITS the ms stay where 8 + 12 bits put them
+
+    private static final AtomicLong LAST = new AtomicLong(); // without the node id bits
+    private static volatile long nodeId = 0;
+
+    private HybridClock() {
+    }
+
+    public static void configure(String myPort) {
+        int port = Integer.parseInt(myPort);
+        if (port < 0 || port >= 1 << NODE_BITS) {
+            throw new IllegalArgumentException("Not a port: " + myPort);
+        }
+        nodeId = port;
+    }
+
+    public static long now() {
+        while (true) {
+            long last = LAST.get();
+            long next = Math.max(System.currentTimeMillis() << LOGICAL_BITS, last + 1);
+            if (LAST.compareAndSet(last, next)) {
+                return next << NODE_BITS | nodeId;
+            }
+        }
+    }
+
+    public static void observe(long version) {
+        long seen = version >>> NODE_BITS;
+        while (true) {
+            long last = LAST.get();
+            if (seen <= last || LAST.compareAndSet(last, seen)) {
+                return;
+            }
+        }
+    }
+}
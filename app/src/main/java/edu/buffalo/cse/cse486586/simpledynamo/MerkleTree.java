@@ -0,0 +1,81 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Hash tree over the rows of one key range: a root, {@link #FANOUT} inner nodes and FANOUT^2 leaves.
+ * A row hashes (key, version) and each node is the XOR of the rows below it, so a write updates one node
+ * per level in place instead of rehashing. Only the hashes are kept in memory. While a tree is built from the
+ * table, writes only mark their leaf dirty, and dirty leaves are recomputed from their rows. Two replicas with equal roots hold the same versions, a differing
+ * root is narrowed down level by level to the leaves whose rows need to be exchanged.
+ */
+class MerkleTree {
+    public static final int FANOUT = 16;
+    public static final int LEAF_LEVEL = 2;
+    public static final int LEAVES = FANOUT * FANOUT;
+
+    private final long[][] hashes = {new long[1], new long[FANOUT], new long[LEAVES]}; // <level, index>
+    private final BitSet dirty = new BitSet(LEAVES); // leaves written since they were last computed
+
+    public static int leaf(String key) {
+        return (int) (Partitioner.MURMUR3.token(key) >>> 56); // top 8 bits
+    }
+
+    /**
+     * Replaces the version of key, a version of 0 means the key was not there.
+     */
+    public synchronized void update(String key, long oldVersion, long newVersion) {
+        if (oldVersion == newVersion) {
+            return;
+        }
+        int leaf = leaf(key);
+        long delta = (oldVersion == 0 ? 0 : hash(key, oldVersion)) ^ (newVersion == 0 ? 0 : hash(key, newVersion));
+        setLeaf(leaf, hashes[LEAF_LEVEL][leaf] ^ delta);
+    }
+
+    // while the tree is built: the row of key changed, its leaf must be read again.
+    public synchronized void written(String key) {
+        dirty.set(leaf(key));
+    }
+
+    public synchronized boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    // the dirty leaves, clean from now on: a write after this marks its leaf again.
+    public synchronized List<Integer> takeDirty() {
+        List<Integer> leaves = new ArrayList<>(dirty.cardinality());
+        for (int leaf = dirty.nextSetBit(0); leaf >= 0; leaf = dirty.nextSetBit(leaf + 1)) {
+            leaves.add(leaf);
+        }
+        dirty.clear();
+        return leaves;
+    }
+
+    /**
+     * Replaces the hash of leaf, the XOR of the hashes of its rows.
+     */
+    public synchronized void setLeaf(int leaf, long hash) {
+        long delta = hashes[LEAF_LEVEL][leaf] ^ hash;
+        for (int level = LEAF_LEVEL, index = leaf; level >= 0; level--, index /= FANOUT) {
+            hashes[level][index] ^= delta;
+        }
+    }
+
+    public synchronized long hash(int level, int index) {
+        return hashes[level][index];
+    }
+
+    public static long hash(String key, long version) {
+        long h = Partitioner.MURMUR3.token(key) ^ (version * 0x9e3779b97f4a7c15L);
+        // murmur3 finalizer, so nearby versions do not cancel each other out
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,99 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Non-cryptographic partitioner for new clusters: the first 64 bits of MurmurHash3 x64_128 (seed 0) of the
+ * UTF-8 key. Spreads keys as evenly as SHA-1 at a fraction of the cost, but places them differently.
+ */
+public class Murmur3Partitioner implements Partitioner {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    Murmur3Partitioner() {
+    }
+
+    @Override
+    public long token(String key) {
+        byte[] data = key.getBytes(StandardCharsets.UTF_8);
+        int length = data.length;
+        int blocks = length / 16;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // tail, bytes little-endian as in the reference implementation
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = length - tail - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (data[tail + i] & 0xFF);
+        }
+        for (int i = Math.min(length - tail, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (data[tail + i] & 0xFF);
+        }
+        if (length - tail > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (length - tail > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public String toString() {
+        return "murmur3";
+    }
+}
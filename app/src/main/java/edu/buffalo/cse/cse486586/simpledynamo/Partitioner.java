@@ -0,0 +1,15 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+/**
+ * Maps keys and node ids to positions on the ring. Every node of a cluster must use the same partitioner,
+ * changing it moves almost every key.
+ */
+public interface Partitioner {
+    Partitioner SHA1 = new Sha1Partitioner();
+    Partitioner MURMUR3 = new Murmur3Partitioner();
+
+    /**
+     * Ring position of key, compared as an unsigned number.
+     */
+    long token(String key);
+}
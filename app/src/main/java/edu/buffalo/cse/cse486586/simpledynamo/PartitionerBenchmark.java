@@ -0,0 +1,66 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Formatter;
+import java.util.Random;
+
+/**
+ * Per-key cost of the partitioners, next to the hex SHA-1 they replaced. Runs on a plain JVM, e.g. from the
+ * project root after a build:
+ * <pre>
+ * java -cp app/build/intermediates/classes/debug edu.buffalo.cse.cse486586.simpledynamo.PartitionerBenchmark
+ * </pre>
+ * Optional arguments: the number of keys and the key length.
+ */
+class PartitionerBenchmark {
+    private static final int ROUNDS = 10; // the first rounds warm up the JIT, the best one is reported
+
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        String[] keys = keys(count, length);
+
+        System.out.println(count + " keys of " + length + " characters, ns per key:");
+        report("hex sha1", keys, null);
+        report("sha1", keys, Partitioner.SHA1);
+        report("murmur3", keys, Partitioner.MURMUR3);
+    }
+
+    private static void report(String name, String[] keys, Partitioner partitioner) throws NoSuchAlgorithmException {
+        long best = Long.MAX_VALUE;
+        long sink = 0; // keeps the JIT from dropping the hashing
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (String key : keys) {
+                sink += partitioner == null ? hexSha1(key).charAt(0) : partitioner.token(key);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-10s %8.1f  (%d)", name, (double) best / keys.length, sink & 1));
+    }
+
+    // the hash each key used to cost: a new digest and a Formatter per call.
+    private static String hexSha1(String input) throws NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] sha1Hash = sha1.digest(input.getBytes());
+        Formatter formatter = new Formatter();
+        for (byte b : sha1Hash) {
+            formatter.format("%02x", b);
+        }
+        return formatter.toString();
+    }
+
+    private static String[] keys(int count, int length) {
+        Random random = new Random(42);
+        String[] keys = new String[count];
+        char[] chars = new char[length];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < length; j++) {
+                chars[j] = (char) ('a' + random.nextInt(26));
+            }
+            keys[i] = new String(chars);
+        }
+        return keys;
+    }
+}
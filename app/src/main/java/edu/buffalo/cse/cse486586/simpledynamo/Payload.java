@@ -2,11 +2,16 @@ package edu.buffalo.cse.cse486586.simpledynamo;
 
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
@@ -14,7 +19,7 @@ import java.util.UUID;
 public class Payload {
     private static final String TAG = Payload.class.getName();
 
-    private UUID sessionId = UUID.randomUUID();
+    private UUID sessionId;
     private MessageType messageType;
     private NodeType nodeType;
 
@@ -23,11 +28,24 @@ public class Payload {
     private String value;
 
     private Map<String, Value> queryResults = new HashMap<>();
+    private List<Payload> batch = Collections.emptyList(); // sub-payloads of a BATCH
 
     private boolean ack = false;
     private long version = 1;
 
+    // position in a streamed reply, a reply that is not streamed is a single last chunk.
+    private int chunk = 0;
+    private boolean last = true;
+
+    // connection this payload arrived on, not sent and not copied.
+    private PeerChannel origin;
+
     public Payload() {
+        this(UUID.randomUUID());
+    }
+
+    Payload(UUID sessionId) {
+        this.sessionId = sessionId;
     }
 
     public Payload(Payload copy) {
@@ -39,28 +57,15 @@ public class Payload {
         this.key = copy.key;
         this.value = copy.value;
         this.queryResults = copy.queryResults;
+        this.batch = copy.batch;
         this.version = copy.version;
+        this.chunk = copy.chunk;
+        this.last = copy.last;
     }
 
     public String serialize() {
         try {
-            JSONObject jsonObject = new JSONObject()
-                    .put("sessionId", sessionId)
-                    .put("fromPort", fromPort)
-                    .put("messageType", messageType)
-                    .put("nodeType", nodeType)
-                    .put("ack", ack)
-                    .put("key", key)
-                    .put("value", value)
-                    .put("version", version);
-
-            JSONObject object = new JSONObject();
-            for (Map.Entry<String, Value> e : queryResults.entrySet()) {
-                object.put(e.getKey(), new JSONObject().put("value", e.getValue().getValue()).put("version", e.getValue().getVersion()));
-            }
-            jsonObject.put("queryResults", object);
-
-            String json = jsonObject.toString();
+            String json = toJson().toString();
 //            Log.d(TAG, "JSON serialized: " + json);
             return json;
         } catch (JSONException e) {
@@ -69,52 +74,94 @@ public class Payload {
         return null;
     }
 
+    private JSONObject toJson() throws JSONException {
+        JSONObject jsonObject = new JSONObject()
+                .put("sessionId", sessionId)
+                .put("fromPort", fromPort)
+                .put("messageType", messageType)
+                .put("nodeType", nodeType)
+                .put("ack", ack)
+                .put("key", key)
+                .put("value", value)
+                .put("version", version)
+                .put("chunk", chunk)
+                .put("last", last);
+
+        JSONObject object = new JSONObject();
+        for (Map.Entry<String, Value> e : queryResults.entrySet()) {
+            object.put(e.getKey(), new JSONObject().put("value", e.getValue().getValue()).put("version", e.getValue().getVersion()));
+        }
+        jsonObject.put("queryResults", object);
+
+        if (!batch.isEmpty()) {
+            JSONArray array = new JSONArray();
+            for (Payload p : batch) {
+                array.put(p.toJson());
+            }
+            jsonObject.put("batch", array);
+        }
+        return jsonObject;
+    }
+
     public static Payload deserialize(String json) {
         try {
 //            Log.d(TAG, "Deserialize json " + json);
-            JSONObject jsonObject = new JSONObject(json);
-            Payload payload = new Payload();
-            if (!jsonObject.isNull("sessionId")) {
-                payload.sessionId = UUID.fromString(jsonObject.getString("sessionId"));
-            }
-
-            if (!jsonObject.isNull("fromPort")) {
-                payload.fromPort = jsonObject.getString("fromPort");
-            }
-            if (!jsonObject.isNull("messageType")) {
-                payload.messageType = MessageType.valueOf(jsonObject.getString("messageType"));
-            }
-            if (!jsonObject.isNull("nodeType")) {
-                payload.nodeType = NodeType.valueOf(jsonObject.getString("nodeType"));
-            }
-            if (!jsonObject.isNull("ack")) {
-                payload.ack = jsonObject.getBoolean("ack");
-            }
-            if (!jsonObject.isNull("key")) {
-                payload.key = jsonObject.getString("key");
-            }
-            if (!jsonObject.isNull("value")) {
-                payload.value = jsonObject.getString("value");
-            }
-            if (!jsonObject.isNull("version")) {
-                payload.version = jsonObject.getLong("version");
-            }
-            if (!jsonObject.isNull("queryResults")) {
-                JSONObject queryResults = jsonObject.getJSONObject("queryResults");
-                Iterator<String> keys = queryResults.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    JSONObject value = queryResults.getJSONObject(key);
-                    payload.queryResults.put(key, new Value(value.getString("value"), value.getLong("version")));
-                }
-            }
-            return payload;
+            return fromJson(new JSONObject(json));
         } catch (JSONException e) {
             Log.e(TAG, "Cannot deserialize: " + json, e);
         }
         return null;
     }
 
+    private static Payload fromJson(JSONObject jsonObject) throws JSONException {
+        Payload payload = new Payload(jsonObject.isNull("sessionId") ? UUID.randomUUID() : UUID.fromString(jsonObject.getString("sessionId")));
+
+        if (!jsonObject.isNull("fromPort")) {
+            payload.fromPort = jsonObject.getString("fromPort");
+        }
+        if (!jsonObject.isNull("messageType")) {
+            payload.messageType = MessageType.valueOf(jsonObject.getString("messageType"));
+        }
+        if (!jsonObject.isNull("nodeType")) {
+            payload.nodeType = NodeType.valueOf(jsonObject.getString("nodeType"));
+        }
+        if (!jsonObject.isNull("ack")) {
+            payload.ack = jsonObject.getBoolean("ack");
+        }
+        if (!jsonObject.isNull("key")) {
+            payload.key = jsonObject.getString("key");
+        }
+        if (!jsonObject.isNull("value")) {
+            payload.value = jsonObject.getString("value");
+        }
+        if (!jsonObject.isNull("version")) {
+            payload.version = jsonObject.getLong("version");
+        }
+        if (!jsonObject.isNull("chunk")) {
+            payload.chunk = jsonObject.getInt("chunk");
+        }
+        if (!jsonObject.isNull("last")) {
+            payload.last = jsonObject.getBoolean("last");
+        }
+        if (!jsonObject.isNull("queryResults")) {
+            JSONObject queryResults = jsonObject.getJSONObject("queryResults");
+            Iterator<String> keys = queryResults.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject value = queryResults.getJSONObject(key);
+                payload.queryResults.put(key, new Value(value.isNull("value") ? null : value.getString("value"), value.getLong("version")));
+            }
+        }
+        if (!jsonObject.isNull("batch")) {
+            JSONArray array = jsonObject.getJSONArray("batch");
+            payload.batch = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                payload.batch.add(fromJson(array.getJSONObject(i)));
+            }
+        }
+        return payload;
+    }
+
     public Payload messageType(MessageType messageType) {
         Payload payload = new Payload(this);
         payload.messageType = messageType;
@@ -133,12 +180,26 @@ public class Payload {
         return payload;
     }
 
+    public Payload value(String value) {
+        Payload payload = new Payload(this);
+        payload.value = value;
+        return payload;
+    }
+
     public Payload nodeType(NodeType nodeType) {
         Payload payload = new Payload(this);
         payload.nodeType = nodeType;
         return payload;
     }
 
+    public Payload chunk(int chunk, boolean last, Map<String, Value> queryResults) {
+        Payload payload = new Payload(this);
+        payload.chunk = chunk;
+        payload.last = last;
+        payload.queryResults = queryResults;
+        return payload;
+    }
+
     public Payload fromPort(String fromPort) {
         Payload payload = new Payload(this);
         payload.fromPort = fromPort;
@@ -152,7 +213,17 @@ public class Payload {
         QUERY_REQUEST,
         QUERY_REPLY,
         RECOVERY_REQUEST,
-        RECOVERY_REPLY
+        RECOVERY_REPLY,
+        BATCH,
+        MEMBERSHIP, // value holds the nodes, version the epoch
+        HANDOFF, // rows the receiver replicates: a key range that moved to it, or a chunk of a client bulk write
+        HEARTBEAT, // version holds the position of the last write, value the ring epoch
+        MERKLE, // hashes of merkle tree nodes, version holds the ring epoch
+        MERKLE_SYNC, // rows of differing merkle leaves, value lists the leaves
+        QUERY_KEYS, // the keys of queryResults are the keys to read, answered with QUERY_REPLY
+        SCAN, // key holds the prefix, value the key to start after, version the page size
+        SCAN_REPLY, // value holds the last key if the page is full, null once the node has no more
+        HANDED_OFF // the new owners acknowledged every row the sender moved for the epoch in version
     }
 
     enum NodeType {
@@ -188,6 +259,87 @@ public class Payload {
         return payload;
     }
 
+    public static Payload scan(String fromPort, String prefix, String after, int pageSize) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.SCAN;
+        payload.key = prefix;
+        payload.value = after;
+        payload.version = pageSize;
+        return payload;
+    }
+
+    public static Payload queryKeys(String fromPort, Collection<String> keys) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.QUERY_KEYS;
+        for (String key : keys) {
+            payload.queryResults.put(key, new Value(null, 0));
+        }
+        return payload;
+    }
+
+    public static Payload batch(String fromPort, List<Payload> payloads) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.BATCH;
+        payload.batch = payloads;
+        return payload;
+    }
+
+    public static Payload membership(String fromPort, List<String> nodes, long epoch) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.MEMBERSHIP;
+        payload.value = DynamoRing.join(nodes);
+        payload.version = epoch;
+        return payload;
+    }
+
+    public static Payload handoff(String fromPort, Map<String, Value> rows) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.HANDOFF;
+        payload.queryResults = rows;
+        return payload;
+    }
+
+    // version carries the sender's SimpleDynamoDB.lastUpdated, see Watermarks
+    public static Payload handedOff(String fromPort, long epoch) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.HANDED_OFF;
+        payload.version = epoch;
+        return payload;
+    }
+
+    public static Payload heartbeat(String fromPort, long lastUpdated, long epoch) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.HEARTBEAT;
+        payload.version = lastUpdated;
+        payload.value = String.valueOf(epoch);
+        return payload;
+    }
+
+    public static Payload merkle(String fromPort, long epoch, Map<String, Value> hashes) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.MERKLE;
+        payload.version = epoch;
+        payload.queryResults = hashes;
+        return payload;
+    }
+
+    public static Payload merkleSync(String fromPort, String leaves, Map<String, Value> rows) {
+        Payload payload = new Payload();
+        payload.fromPort = fromPort;
+        payload.messageType = MessageType.MERKLE_SYNC;
+        payload.value = leaves;
+        payload.queryResults = rows;
+        return payload;
+    }
+
     public static Payload recoverRequest(String fromPort) {
         Payload payload = new Payload();
         payload.fromPort = fromPort;
@@ -251,6 +403,38 @@ public class Payload {
         this.queryResults = queryResults;
     }
 
+    public List<Payload> getBatch() {
+        return batch;
+    }
+
+    public void setBatch(List<Payload> batch) {
+        this.batch = batch;
+    }
+
+    public int getChunk() {
+        return chunk;
+    }
+
+    public void setChunk(int chunk) {
+        this.chunk = chunk;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    public void setLast(boolean last) {
+        this.last = last;
+    }
+
+    public PeerChannel getOrigin() {
+        return origin;
+    }
+
+    public void setOrigin(PeerChannel origin) {
+        this.origin = origin;
+    }
+
     public boolean isAck() {
         return ack;
     }
@@ -274,18 +458,21 @@ public class Payload {
         Payload payload = (Payload) o;
         return ack == payload.ack &&
                 version == payload.version &&
+                chunk == payload.chunk &&
+                last == payload.last &&
                 Objects.equals(sessionId, payload.sessionId) &&
                 messageType == payload.messageType &&
                 nodeType == payload.nodeType &&
                 Objects.equals(fromPort, payload.fromPort) &&
                 Objects.equals(key, payload.key) &&
                 Objects.equals(value, payload.value) &&
-                Objects.equals(queryResults, payload.queryResults);
+                Objects.equals(queryResults, payload.queryResults) &&
+                Objects.equals(batch, payload.batch);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(sessionId, messageType, nodeType, fromPort, key, value, queryResults, ack, version);
+        return Objects.hash(sessionId, messageType, nodeType, fromPort, key, value, queryResults, batch, ack, version, chunk, last);
     }
 
     @Override
@@ -298,14 +485,21 @@ public class Payload {
         sb.append(", key='").append(key).append('\'');
         sb.append(", value='").append(value).append('\'');
         sb.append(", queryResults=").append(queryResults);
+        if (!batch.isEmpty()) {
+            sb.append(", batch=").append(batch);
+        }
         sb.append(", ack=").append(ack);
         sb.append(", version=").append(version);
+        if (chunk > 0 || !last) {
+            sb.append(", chunk=").append(chunk);
+            sb.append(", last=").append(last);
+        }
         sb.append('}');
         return sb.toString();
     }
 
     public static class Value {
-        private String value;
+        private String value; // null for a deleted key
         private long version;
 
         public Value(String value, long version) {
@@ -0,0 +1,240 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary wire format of a {@link Payload}, written straight into a {@link ByteBuffer} sized up-front.
+ * <p>
+ * Layout (big-endian): codec version, flags, message type, node type, session id (2 longs), version,
+ * chunk, fromPort, key, value, result count, then (key, value, version) per result, batch count, then the
+ * nested encoding of each sub-payload. Strings are an int byte
+ * length (-1 for null) followed by UTF-8 bytes. Enums go as ordinals, so new constants must be appended.
+ * <p>
+ * Older layouts still decode: version 1 has no batch, version 2 adds it, version 3 adds the chunk and the last flag.
+ * A message of an older layout was never split, so it is chunk 0 and the last one. Newer versions are rejected.
+ * <p>
+ * A frame starting with '{' is JSON ({@link Payload#serialize()}), set {@link #JSON} to send JSON for debugging.
+ */
+public class PayloadCodec {
+    private static final String TAG = PayloadCodec.class.getName();
+
+    public static final byte VERSION = 3;
+    private static final byte BATCH_VERSION = 2; // the first with a batch
+    private static final byte JSON_START = '{';
+
+    // send human readable JSON instead, receivers accept both.
+    public static volatile boolean JSON = false;
+
+    private static final int FLAG_ACK = 1;
+    private static final int FLAG_LAST = 2;
+
+    private static final Payload.MessageType[] MESSAGE_TYPES = Payload.MessageType.values();
+    private static final Payload.NodeType[] NODE_TYPES = Payload.NodeType.values();
+
+    private static final int FIXED_SIZE = 1 + 1 + 1 + 1 + 8 + 8 + 8 + 4 + 4 + 4; // everything but strings, results and batch
+    private static final int MIN_RESULT_SIZE = 4 + 4 + 8;
+
+    public static ByteBuffer encode(Payload payload) {
+        if (JSON) {
+            String json = payload.serialize();
+            return json == null ? null : ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(sizeOf(payload));
+        encode(payload, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static int sizeOf(Payload payload) {
+        int size = FIXED_SIZE
+                + sizeOf(payload.getFromPort())
+                + sizeOf(payload.getKey())
+                + sizeOf(payload.getValue());
+        for (Map.Entry<String, Payload.Value> e : payload.getQueryResults().entrySet()) {
+            size += sizeOf(e.getKey()) + sizeOf(e.getValue().getValue()) + 8;
+        }
+        for (Payload p : payload.getBatch()) {
+            size += sizeOf(p);
+        }
+        return size;
+    }
+
+    public static void encode(Payload payload, ByteBuffer out) {
+        out.put(VERSION);
+        out.put((byte) ((payload.isAck() ? FLAG_ACK : 0) | (payload.isLast() ? FLAG_LAST : 0)));
+        out.put(ordinal(payload.getMessageType()));
+        out.put(ordinal(payload.getNodeType()));
+        UUID sessionId = payload.getSessionId();
+        out.putLong(sessionId.getMostSignificantBits());
+        out.putLong(sessionId.getLeastSignificantBits());
+        out.putLong(payload.getVersion());
+        out.putInt(payload.getChunk());
+        putString(out, payload.getFromPort());
+        putString(out, payload.getKey());
+        putString(out, payload.getValue());
+
+        Map<String, Payload.Value> results = payload.getQueryResults();
+        out.putInt(results.size());
+        for (Map.Entry<String, Payload.Value> e : results.entrySet()) {
+            putString(out, e.getKey());
+            putString(out, e.getValue().getValue());
+            out.putLong(e.getValue().getVersion());
+        }
+
+        List<Payload> batch = payload.getBatch();
+        out.putInt(batch.size());
+        for (Payload p : batch) {
+            encode(p, out);
+        }
+    }
+
+    public static Payload decode(ByteBuffer in) {
+        if (!in.hasRemaining()) {
+            return null;
+        }
+        byte codec = in.get(in.position());
+        if (codec == JSON_START) {
+            return Payload.deserialize(getString(in, in.remaining()));
+        }
+        try {
+            return decodeBinary(in);
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException | StreamCorruptedException e) {
+            Log.e(TAG, "Cannot decode payload", e);
+        }
+        return null;
+    }
+
+    private static Payload decodeBinary(ByteBuffer in) throws StreamCorruptedException {
+        byte codec = in.get();
+        if (codec < 1 || codec > VERSION) {
+            throw new StreamCorruptedException("Unknown codec version: " + codec);
+        }
+        byte flags = in.get();
+        byte messageType = in.get();
+        byte nodeType = in.get();
+        Payload payload = new Payload(new UUID(in.getLong(), in.getLong()));
+        payload.setAck((flags & FLAG_ACK) != 0);
+        payload.setLast(codec < VERSION || (flags & FLAG_LAST) != 0);
+        payload.setMessageType(messageType < 0 ? null : MESSAGE_TYPES[messageType]);
+        payload.setNodeType(nodeType < 0 ? null : NODE_TYPES[nodeType]);
+        payload.setVersion(in.getLong());
+        if (codec == VERSION) {
+            payload.setChunk(in.getInt());
+        }
+        payload.setFromPort(getString(in));
+        payload.setKey(getString(in));
+        payload.setValue(getString(in));
+
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / MIN_RESULT_SIZE) {
+            throw new StreamCorruptedException("Invalid result count: " + count);
+        }
+        Map<String, Payload.Value> results = new HashMap<>(Math.max(4, (int) (count / .75f) + 1));
+        for (int i = 0; i < count; i++) {
+            String key = getString(in);
+            String value = getString(in);
+            results.put(key, new Payload.Value(value, in.getLong()));
+        }
+        payload.setQueryResults(results);
+
+        if (codec < BATCH_VERSION) {
+            return payload;
+        }
+        int batchCount = in.getInt();
+        int minSize = codec == VERSION ? FIXED_SIZE : FIXED_SIZE - 4; // a version 2 payload has no chunk
+        if (batchCount < 0 || batchCount > in.remaining() / minSize) {
+            throw new StreamCorruptedException("Invalid batch count: " + batchCount);
+        }
+        if (batchCount > 0) {
+            List<Payload> batch = new ArrayList<>(batchCount);
+            for (int i = 0; i < batchCount; i++) {
+                batch.add(decodeBinary(in));
+            }
+            payload.setBatch(batch);
+        }
+        return payload;
+    }
+
+    private static byte ordinal(Enum<?> e) {
+        return (byte) (e == null ? -1 : e.ordinal());
+    }
+
+    private static int sizeOf(String s) {
+        return 4 + (s == null ? 0 : utf8Length(s));
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(utf8Length(s));
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                // a lone surrogate is written as 3 bytes as well, so the size from utf8Length stays exact.
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        return length < 0 ? null : getString(in, length);
+    }
+
+    private static String getString(ByteBuffer in, int length) {
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (!in.hasArray()) {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,13 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.io.IOException;
+
+/**
+ * A connection to a peer that carries messages both ways. Requests remember the channel they arrived on,
+ * so their replies are written back on it and matched by session id at the other end.
+ */
+public interface PeerChannel {
+    boolean isOpen();
+
+    void write(Payload payload) throws IOException;
+}
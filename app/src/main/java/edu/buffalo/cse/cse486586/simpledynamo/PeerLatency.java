@@ -0,0 +1,93 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Round trip times of single key reads per peer, over the last {@link #WINDOW} replies. Hedged reads ask the
+ * fastest replicas first and only ask another one once the first ones are slower than their p95.
+ */
+final class PeerLatency {
+    private static final int WINDOW = 64;
+    private static final int MIN_SAMPLES = 8; // below that a peer counts as unmeasured
+    public static final long DEFAULT_DELAY = 50; // ms, hedge delay while unmeasured
+    private static final long MIN_DELAY = 5; // ms, so a fast peer is not hedged on scheduling noise
+
+    private static final ConcurrentMap<String, Samples> SAMPLES = new ConcurrentHashMap<>(); // <port, samples>
+
+    private PeerLatency() {
+    }
+
+    public static void record(String node, long millis) {
+        Samples samples = SAMPLES.get(node);
+        if (samples == null) {
+            SAMPLES.putIfAbsent(node, new Samples());
+            samples = SAMPLES.get(node);
+        }
+        synchronized (samples) {
+            samples.millis[samples.next] = millis;
+            samples.next = (samples.next + 1) % WINDOW;
+            samples.count = Math.min(samples.count + 1, WINDOW);
+        }
+    }
+
+    /**
+     * The 95th percentile of the round trip to node in ms, -1 while there are too few replies to tell.
+     */
+    public static long p95(String node) {
+        Samples samples = SAMPLES.get(node);
+        if (samples == null) {
+            return -1;
+        }
+        long[] sorted;
+        synchronized (samples) {
+            if (samples.count < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples.millis, samples.count);
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+    }
+
+    // unmeasured peers go first, so they get measured.
+    public static List<String> fastestFirst(List<String> nodes) {
+        final Map<String, Long> p95s = new HashMap<>(); // read once, samples change while sorting
+        for (String node : nodes) {
+            p95s.put(node, p95(node));
+        }
+        List<String> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return p95s.get(a).compareTo(p95s.get(b));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * How long to wait for the replies of nodes before asking another replica: the p95 of the slowest of them.
+     */
+    public static long hedgeDelay(List<String> nodes) {
+        long delay = MIN_DELAY;
+        for (String node : nodes) {
+            long p95 = p95(node);
+            delay = Math.max(delay, p95 < 0 ? DEFAULT_DELAY : p95);
+        }
+        return delay;
+    }
+
+    private static class Samples {
+        private final long[] millis = new long[WINDOW];
+        private int next = 0; // slot of the next reply
+        private int count = 0;
+    }
+}
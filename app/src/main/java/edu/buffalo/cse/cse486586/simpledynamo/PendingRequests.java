@@ -0,0 +1,366 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests waiting for replies, by session id. An entry is removed once every expected reply arrived, or at its
+ * deadline, whichever comes first, so the table holds only what is in flight. Deadlines, of the entries and of the
+ * listeners waiting on them, sit on a hashed timer wheel of {@link #SLOTS} slots of {@link #TICK} ms: adding one
+ * is O(1), and each tick only looks at the entries of one slot.
+ * <p>
+ * Replies that arrive after their waiter gave up count as late, replies for sessions that are not in the table,
+ * expired or never known, count as orphaned.
+ * <p>
+ * Waiting is either blocking, {@link Request#await}, or a {@link Listener} that is called on a callback thread once
+ * enough replies arrived or its timeout passed, so no thread is held while requests are in flight.
+ */
+class PendingRequests implements Runnable {
+    private static final String TAG = PendingRequests.class.getName();
+    private static final long TICK = 10; // ms, fine enough for the hedge delays of reads
+    private static final int SLOTS = 512; // a turn of the wheel is 5.12 s, longer deadlines wait for more turns
+    private static final int CALLBACK_THREADS = 2;
+
+    public interface Listener {
+        /**
+         * @param complete true once enough replies arrived, false if the timeout passed first
+         */
+        void done(boolean complete);
+    }
+
+    private final ConcurrentMap<UUID, Request> requests = new ConcurrentHashMap<>();
+    private final List<List<Timeout>> wheel = new ArrayList<>(SLOTS);
+    private long tick = 0; // guarded by wheel
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong orphaned = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    // runs listeners, never the I/O thread that handled the reply nor the wheel
+    private final ExecutorService callbacks;
+
+    public PendingRequests() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            wheel.add(new ArrayList<Timeout>());
+        }
+        callbacks = Executors.newFixedThreadPool(CALLBACK_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PendingRequests-callback-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "PendingRequests");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Registers session before its request is sent: a waiter is released after needed replies, the entry lives
+     * until expected replies arrived or for lifetimeMillis.
+     */
+    public Request track(UUID session, int needed, int expected, long lifetimeMillis) {
+        Request request = new Request(session, needed, expected);
+        if (expected <= 0) {
+            return request; // nothing to wait for
+        }
+        requests.put(session, request);
+        schedule(request, lifetimeMillis);
+        return request;
+    }
+
+    private void schedule(Timeout timeout, long millis) {
+        long ticks = Math.max(0, (millis + TICK - 1) / TICK) + 1; // the current tick is partly over, never fire early
+        synchronized (wheel) {
+            timeout.rounds = (ticks - 1) / SLOTS;
+            wheel.get((int) ((tick + ticks) % SLOTS)).add(timeout);
+        }
+    }
+
+    /**
+     * The request reply answers, null for an orphaned reply.
+     */
+    public Request request(Payload reply) {
+        Request request = requests.get(reply.getSessionId());
+        if (request == null) {
+            long count = orphaned.incrementAndGet();
+            Log.d(TAG, "Orphaned " + reply.getMessageType() + " from " + reply.getFromPort() + ", " + count + " so far");
+        }
+        return request;
+    }
+
+    public long late() {
+        return late.get();
+    }
+
+    public long orphaned() {
+        return orphaned.get();
+    }
+
+    public long expired() {
+        return expired.get();
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            // ticks keep to the clock, time spent expiring does not delay the following ones
+            next += TimeUnit.MILLISECONDS.toNanos(TICK);
+            try {
+                TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+            } catch (InterruptedException e) {
+                Log.w(TAG, "PendingRequests interrupted");
+                return;
+            }
+            List<Timeout> due = new ArrayList<>();
+            synchronized (wheel) {
+                tick++;
+                Iterator<Timeout> slot = wheel.get((int) (tick % SLOTS)).iterator();
+                while (slot.hasNext()) {
+                    Timeout timeout = slot.next();
+                    if (timeout.cancelled()) {
+                        slot.remove();
+                    } else if (timeout.rounds > 0) {
+                        timeout.rounds--;
+                    } else {
+                        slot.remove();
+                        due.add(timeout);
+                    }
+                }
+            }
+            for (Timeout timeout : due) {
+                timeout.expire();
+            }
+        }
+    }
+
+    // an entry of the timer wheel
+    private abstract static class Timeout {
+        private long rounds; // guarded by wheel
+
+        // done before the deadline, the wheel drops it
+        abstract boolean cancelled();
+
+        abstract void expire();
+    }
+
+    public class Request extends Timeout {
+        private final UUID session;
+        private final int expected;
+        private final CountDownLatch needed;
+        private final AtomicInteger received = new AtomicInteger();
+        private final Map<String, Payload.Value> results = new ConcurrentHashMap<>(0);
+        private final ConcurrentMap<String, int[]> streams = new ConcurrentHashMap<>(0); // <fromPort, {received, expected}>
+        private final List<Waiter> waiters = new ArrayList<>(0); // guarded by this
+        private String bound; // guarded by this
+        private final Set<String> repliers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(0));
+        private volatile boolean abandoned = false;
+
+        private Request(UUID session, int needed, int expected) {
+            this.session = session;
+            this.needed = new CountDownLatch(Math.max(0, needed));
+            this.expected = expected;
+        }
+
+        public UUID session() {
+            return session;
+        }
+
+        // rows of the replies, merged as they arrive
+        public Map<String, Payload.Value> results() {
+            return results;
+        }
+
+        /**
+         * Waits until enough replies arrived, may be called again after a timeout.
+         */
+        public boolean await(long time, TimeUnit unit) {
+            long start = System.nanoTime();
+            try {
+                if (needed.await(time, unit)) {
+                    Log.d(TAG, "Completed " + session + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+                    return true;
+                }
+                Log.w(TAG, "Timed out while waiting for: " + session);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while waiting for: " + session);
+            }
+            return false;
+        }
+
+        /**
+         * Calls listener once enough replies arrived, or after timeoutMillis, whichever comes first.
+         * May be called again after a timeout.
+         */
+        public void listen(Listener listener, long timeoutMillis) {
+            Waiter waiter = new Waiter(this, listener);
+            synchronized (this) {
+                if (needed.getCount() > 0) {
+                    waiters.add(waiter);
+                    schedule(waiter, timeoutMillis);
+                    return;
+                }
+            }
+            call(waiter, true);
+        }
+
+        private void timedOut(Waiter waiter) {
+            synchronized (this) {
+                if (!waiters.remove(waiter)) {
+                    return; // completed meanwhile
+                }
+            }
+            call(waiter, false);
+        }
+
+        private void call(final Waiter waiter, final boolean complete) {
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        waiter.listener.done(complete);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Listener of " + session + " failed", e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Scans: a reply cut off after key says nothing about the keys after it, so the merged page ends at the
+         * smallest such key. Null while no reply was cut off.
+         */
+        public synchronized void bound(String key) {
+            if (key != null && (bound == null || Util.compareKeys(key, bound) < 0)) {
+                bound = key;
+            }
+        }
+
+        public synchronized String bound() {
+            return bound;
+        }
+
+        // scans: the nodes that replied, to tell which key ranges a timed out round still covers
+        public void repliedBy(String node) {
+            repliers.add(node);
+        }
+
+        public Set<String> repliers() {
+            return repliers;
+        }
+
+        // the waiter has given up, later replies are late.
+        public void abandon() {
+            abandoned = true;
+        }
+
+        /**
+         * Counts one reply, removes the request once all expected replies are in.
+         */
+        public void replied() {
+            if (abandoned) {
+                late.incrementAndGet();
+            }
+            needed.countDown();
+            if (received.incrementAndGet() >= expected) {
+                requests.remove(session, this);
+            }
+            if (needed.getCount() == 0) {
+                List<Waiter> ready;
+                synchronized (this) {
+                    ready = new ArrayList<>(waiters);
+                    waiters.clear();
+                }
+                for (Waiter waiter : ready) {
+                    waiter.called = true;
+                    call(waiter, true);
+                }
+            }
+        }
+
+        @Override
+        boolean cancelled() {
+            return received.get() >= expected;
+        }
+
+        @Override
+        void expire() {
+            if (requests.remove(session, this)) {
+                expired.incrementAndGet();
+                Log.d(TAG, "Expired " + session + " with " + received.get() + "/" + expected + " replies");
+            }
+        }
+
+        /**
+         * Counts the chunks of a streamed reply, true once every chunk from that sender has arrived.
+         * Chunks may be handled out of order, the last one tells how many there are.
+         */
+        public boolean streamCompleted(Payload reply) {
+            if (reply.isLast() && reply.getChunk() == 0) {
+                return true; // not streamed, or a stream of one chunk
+            }
+            int[] counts = streams.get(reply.getFromPort()); // <received, expected>
+            if (counts == null) {
+                streams.putIfAbsent(reply.getFromPort(), new int[]{0, -1});
+                counts = streams.get(reply.getFromPort());
+            }
+            synchronized (counts) {
+                counts[0]++;
+                if (reply.isLast()) {
+                    counts[1] = reply.getChunk() + 1;
+                }
+                if (counts[0] == counts[1]) {
+                    streams.remove(reply.getFromPort());
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Waiter extends Timeout {
+        private final Request request;
+        private final Listener listener;
+        private volatile boolean called = false; // with complete, before its timeout
+
+        private Waiter(Request request, Listener listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+
+        @Override
+        boolean cancelled() {
+            return called;
+        }
+
+        @Override
+        void expire() {
+            request.timedOut(this);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings replicas up to date after a single key read: only the replicas that replied with an older version or
+ * without the key get the newest one. Runs on its own thread once the replies that came after the read quorum had
+ * time to arrive, so the reader does not wait for it. Only {@link DynamoRing#readRepairChance()} of the reads
+ * repair, replicas that did not reply are left to hinted handoff and anti-entropy.
+ */
+class ReadRepair {
+    private static final String TAG = ReadRepair.class.getName();
+    private static final long NO_ROW = 0; // versions of the hybrid clock are positive
+
+    private final Dynamo dynamo;
+    private final String myPort;
+    private final Map<UUID, Map<String, Long>> reads = new ConcurrentHashMap<>(); // <session, <node, version>>
+    private final ScheduledThreadPoolExecutor executor;
+
+    public ReadRepair(Dynamo dynamo, String myPort) {
+        this.dynamo = dynamo;
+        this.myPort = myPort;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReadRepair");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public void track(UUID session) {
+        reads.put(session, new ConcurrentHashMap<String, Long>());
+    }
+
+    // the version node replied with, replies of other sessions are ignored.
+    public void replied(UUID session, String node, Payload.Value value) {
+        Map<String, Long> versions = reads.get(session);
+        if (versions != null) {
+            versions.put(node, value == null ? NO_ROW : value.getVersion());
+        }
+    }
+
+    /**
+     * Compares the replies of session to the newest one after delayMillis, replies is where they are merged.
+     */
+    public void repair(final UUID session, final String key, final Map<String, Payload.Value> replies, long delayMillis) {
+        if (Math.random() >= DynamoRing.readRepairChance()) {
+            reads.remove(session);
+            return;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Long> versions = reads.remove(session);
+                Payload.Value latest;
+                synchronized (replies) {
+                    latest = replies.get(key);
+                }
+                if (versions == null || latest == null) {
+                    return;
+                }
+                Payload update = Payload.insert(myPort, key, latest.getValue(), Payload.NodeType.UPDATE, latest.getVersion());
+                for (Map.Entry<String, Long> entry : versions.entrySet()) {
+                    if (entry.getValue() < latest.getVersion()) {
+                        Log.d(TAG, "Repairing " + key + " on " + entry.getKey() + ", it had version " + entry.getValue());
+                        dynamo.sendTo(entry.getKey(), update);
+                    }
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,222 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams key ranges to the nodes that became their replicas after a membership change. Runs on one low priority
+ * thread with a bandwidth cap, so foreground requests stay fast. The previous owners keep their rows until the new
+ * owners acknowledged them, reads meanwhile are answered by the replicas that did not change. Each row is sent by
+ * one of its previous owners, which tells the others with a HANDED_OFF once all it sent was acknowledged.
+ */
+class Rebalancer implements Runnable {
+    private static final String TAG = Rebalancer.class.getName();
+    // bounds of one HANDOFF message
+    private static final int CHUNK_ROWS = 256;
+    private static final int CHUNK_BYTES = 32 * 1024;
+    private static final int MAX_BYTES_PER_SECOND = 256 * 1024;
+
+    private final Dynamo dynamo;
+    private final SimpleDynamoDB db;
+    private final String myPort;
+    private final BlockingQueue<DynamoRing.Table[]> changes = new LinkedBlockingQueue<>(); // <previous, current>
+    // rows moved away that other previous owners send, kept until they confirm
+    private long epoch = -1; // guarded by this
+    private Map<String, List<String>> unconfirmed = new HashMap<>(); // guarded by this, <sender, keys>
+    private final Map<Long, Set<String>> confirmed = new HashMap<>(); // guarded by this, <epoch, senders>, may come early
+
+    public Rebalancer(Dynamo dynamo, SimpleDynamoDB db, String myPort) {
+        this.dynamo = dynamo;
+        this.db = db;
+        this.myPort = myPort;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "Rebalancer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public void rebalance(DynamoRing.Table previous, DynamoRing.Table current) {
+        changes.add(new DynamoRing.Table[]{previous, current});
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            DynamoRing.Table[] change;
+            try {
+                change = changes.take();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Rebalancer interrupted");
+                return;
+            }
+            try {
+                long start = System.nanoTime();
+                handoff(change[0], change[1]);
+                Log.d(TAG, "Rebalance to epoch " + change[1].epoch() + " took: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            } catch (Exception e) {
+                Log.e(TAG, "Rebalance to epoch " + change[1].epoch() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Sends every row this node is responsible for moving to the nodes that newly replicate it, then deletes the
+     * rows it sent and no longer replicates. Rows it no longer replicates that another node sends are deleted once
+     * that node confirms, see {@link #handedOff}.
+     */
+    private void handoff(DynamoRing.Table previous, DynamoRing.Table current) throws InterruptedException {
+        Map<String, Map<String, Payload.Value>> outgoing = new HashMap<>(); // <node, rows>
+        Map<String, Integer> outgoingBytes = new HashMap<>();
+        List<String> movedAway = new ArrayList<>();
+        Map<String, List<String>> sentByOthers = new HashMap<>(); // <sender, keys>
+        boolean acknowledged = true;
+
+        try (Cursor cursor = db.all()) {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0);
+                List<String> before = previous.preferenceListForKey(key);
+                List<String> after = current.preferenceListForKey(key);
+                String sender = sender(before, current);
+                if (!myPort.equals(sender)) {
+                    if (!after.contains(myPort)) {
+                        List<String> keys = sentByOthers.get(sender);
+                        if (keys == null) {
+                            keys = new ArrayList<>();
+                            sentByOthers.put(sender, keys);
+                        }
+                        keys.add(key);
+                    }
+                    continue;
+                }
+                if (!after.contains(myPort)) {
+                    movedAway.add(key);
+                }
+                String value = cursor.getString(1); // null for a deleted key
+                for (String node : after) {
+                    if (before.contains(node) || node.equals(myPort)) {
+                        continue;
+                    }
+                    Map<String, Payload.Value> rows = outgoing.get(node);
+                    if (rows == null) {
+                        rows = new HashMap<>();
+                        outgoing.put(node, rows);
+                        outgoingBytes.put(node, 0);
+                    }
+                    rows.put(key, new Payload.Value(value, cursor.getLong(2)));
+                    int bytes = outgoingBytes.get(node) + key.length() + (value == null ? 0 : value.length());
+                    outgoingBytes.put(node, bytes);
+                    if (rows.size() >= CHUNK_ROWS || bytes >= CHUNK_BYTES) {
+                        acknowledged &= send(node, outgoing.remove(node), outgoingBytes.remove(node));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, Payload.Value>> entry : outgoing.entrySet()) {
+            acknowledged &= send(entry.getKey(), entry.getValue(), outgoingBytes.get(entry.getKey()));
+        }
+
+        synchronized (this) {
+            epoch = current.epoch();
+            unconfirmed = sentByOthers;
+            Set<String> senders = confirmed.remove(epoch);
+            if (senders != null) {
+                for (String sender : senders) {
+                    handedOff(sender, epoch);
+                }
+            }
+            confirmed.keySet().retainAll(newerThan(epoch));
+        }
+
+        if (acknowledged) {
+            for (String key : movedAway) {
+                dynamo.forget(key);
+            }
+            Log.d(TAG, "Handed off and deleted " + movedAway.size() + " rows");
+            Set<String> owners = new LinkedHashSet<>(previous.nodes());
+            owners.remove(myPort);
+            for (String node : owners) {
+                dynamo.sendTo(node, Payload.handedOff(myPort, current.epoch()));
+            }
+        } else {
+            Log.w(TAG, "Handoff not acknowledged, keeping " + movedAway.size() + " rows");
+        }
+    }
+
+    private Set<Long> newerThan(long epoch) {
+        Set<Long> newer = new HashSet<>();
+        for (long e : confirmed.keySet()) {
+            if (e > epoch) {
+                newer.add(e);
+            }
+        }
+        return newer;
+    }
+
+    /**
+     * The new owners have every row sender moved for epoch: the rows this node kept for it can go.
+     */
+    public synchronized void handedOff(String sender, long epoch) {
+        if (epoch == this.epoch) {
+            List<String> keys = unconfirmed.remove(sender);
+            if (keys != null) {
+                for (String key : keys) {
+                    dynamo.forget(key);
+                }
+                Log.d(TAG, sender + " handed off " + keys.size() + " rows, deleted them");
+            }
+        } else if (epoch > this.epoch) {
+            // this node has not rebalanced to that epoch yet
+            Set<String> senders = confirmed.get(epoch);
+            if (senders == null) {
+                senders = new HashSet<>();
+                confirmed.put(epoch, senders);
+            }
+            senders.add(sender);
+        }
+    }
+
+    /**
+     * The node that moves a key: the first previous replica that is still a member, so each row is sent once.
+     */
+    private static String sender(List<String> before, DynamoRing.Table current) {
+        for (String node : before) {
+            if (current.nodes().contains(node)) {
+                return node;
+            }
+        }
+        return before.get(0);
+    }
+
+    // sends one chunk and waits for its ACK, then sleeps as long as needed to stay under the bandwidth cap.
+    private boolean send(String node, Map<String, Payload.Value> rows, int bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        Payload handoff = Payload.handoff(myPort, rows).ack(true);
+        PendingRequests.Request request = dynamo.track(handoff, 1, 1, Dynamo.TIMEOUT * 2);
+        dynamo.sendTo(node, handoff);
+        boolean acknowledged = dynamo.waitForCompletion(request, Dynamo.TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        if (!acknowledged) {
+            Log.w(TAG, "HANDOFF of " + rows.size() + " rows to " + node + " timed out");
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long budget = bytes * 1000L / MAX_BYTES_PER_SECOND;
+        if (elapsed < budget) {
+            Thread.sleep(budget - elapsed);
+        }
+        return acknowledged;
+    }
+}
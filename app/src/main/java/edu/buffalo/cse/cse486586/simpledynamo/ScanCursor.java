@@ -0,0 +1,34 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.database.MatrixCursor;
+import android.os.Bundle;
+
+/**
+ * One page of a scan: key and value rows in key order, each key once with its newest value. The continuation
+ * token is in {@link #getExtras()} under {@link #NEXT}, pass it as the key to start after to get the next page.
+ * There is no token on the last page.
+ */
+public class ScanCursor extends MatrixCursor {
+    public static final String NEXT = "next";
+
+    private final Bundle extras = new Bundle(1);
+
+    public ScanCursor(int capacity) {
+        super(new String[]{"key", "value"}, capacity);
+    }
+
+    void setNext(String next) {
+        if (next != null) {
+            extras.putString(NEXT, next);
+        }
+    }
+
+    public String getNext() {
+        return extras.getString(NEXT);
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return extras;
+    }
+}
@@ -0,0 +1,168 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One bounded outbound queue and sender thread per peer, so a slow or dead peer only delays its own messages.
+ * Messages that pile up in a queue are sent together as one BATCH. Messages that cannot be sent are handed to the
+ * {@link DropListener}, so writes among them are not lost.
+ */
+public class SendLane implements Runnable {
+    private static final String TAG = SendLane.class.getName();
+    private static final int CAPACITY = 1024;
+    // after a failed send, messages to that peer are dropped for this long instead of each waiting out a connect.
+    private static final long BACKOFF = 1000; // ms
+    // batching limits, see coalesce
+    private static final long LINGER = 2; // ms
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private static final Map<String, SendLane> LANES = new ConcurrentHashMap<>(); // <port, lane>
+    private static volatile DropListener dropListener;
+
+    public interface DropListener {
+        // called once per message, batches are unpacked
+        void dropped(String node, Payload payload);
+    }
+
+    private final String node;
+    private final BlockingQueue<Payload> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private volatile long backoffUntil = 0;
+
+    private SendLane(String node) {
+        this.node = node;
+    }
+
+    public static void setDropListener(DropListener listener) {
+        SendLane.dropListener = listener;
+    }
+
+    public static boolean send(String node, Payload payload) {
+        if (!lane(node).queue.offer(payload)) {
+            dropped(node, payload, "send queue full");
+            return false;
+        }
+        return true;
+    }
+
+    private static void dropped(String node, Payload payload, String reason) {
+        Log.w(TAG, "Dropped message to " + node + ", " + reason + ": " + payload);
+        DropListener listener = dropListener;
+        if (listener == null) {
+            return;
+        }
+        if (payload.getMessageType() == Payload.MessageType.BATCH) {
+            for (Payload p : payload.getBatch()) {
+                listener.dropped(node, p);
+            }
+        } else {
+            listener.dropped(node, payload);
+        }
+    }
+
+    private static SendLane lane(String node) {
+        SendLane lane = LANES.get(node);
+        if (lane == null) {
+            synchronized (LANES) {
+                lane = LANES.get(node);
+                if (lane == null) {
+                    lane = new SendLane(node);
+                    Thread thread = new Thread(lane, "SendLane-" + node);
+                    thread.setDaemon(true);
+                    thread.start();
+                    LANES.put(node, lane);
+                }
+            }
+        }
+        return lane;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Payload payload;
+            try {
+                payload = coalesce(queue.take());
+            } catch (InterruptedException e) {
+                Log.w(TAG, "SendLane interrupted: " + node);
+                return;
+            }
+            if (System.currentTimeMillis() < backoffUntil) {
+                dropped(node, payload, "backing off");
+                continue;
+            }
+            ByteBuffer message = PayloadCodec.encode(payload);
+            if (message == null || !message.hasRemaining()) {
+                Log.d(TAG, "EMPTY payload not sent: " + payload);
+                continue;
+            }
+            try {
+                send(node, message); // the node is back online once the FailureDetector hears from it
+            } catch (Exception e) {
+                backoffUntil = System.currentTimeMillis() + BACKOFF;
+                DynamoRing.markOffline(node);
+                Log.e(TAG, "SendLane socket Exception" + " while sending to " + node, e); // offline?
+                dropped(node, payload, "send failed");
+            }
+        }
+    }
+
+    /**
+     * Packs messages already waiting behind first into one BATCH, up to the byte budget. If there was a backlog,
+     * more are likely to follow, so it lingers a moment for them. A lone message goes out at once.
+     */
+    private Payload coalesce(Payload first) throws InterruptedException {
+        Payload next = queue.poll();
+        if (next == null) {
+            return first;
+        }
+        List<Payload> batch = new ArrayList<>();
+        batch.add(first);
+        int bytes = PayloadCodec.sizeOf(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER);
+        while (next != null) {
+            batch.add(next);
+            bytes += PayloadCodec.sizeOf(next);
+            if (bytes >= MAX_BATCH_BYTES || batch.size() >= MAX_BATCH_SIZE) {
+                break;
+            }
+            next = queue.poll();
+            if (next == null) {
+                next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+        return Payload.batch(null, batch);
+    }
+
+    private static void send(String node, ByteBuffer message) throws IOException {
+        ConnectionPool.Connection connection = ConnectionPool.acquire(node);
+        try {
+            connection.write(message);
+        } catch (IOException e) {
+            ConnectionPool.invalidate(connection);
+            if (!connection.isReused()) {
+                throw e;
+            }
+            // a pooled connection may have gone stale since it was last used, retry once on a fresh one.
+            Log.w(TAG, "Retrying send to " + node + " on a new connection");
+            connection = ConnectionPool.acquire(node);
+            try {
+                connection.write(message);
+            } catch (IOException retryException) {
+                ConnectionPool.invalidate(connection);
+                throw retryException;
+            }
+        }
+        ConnectionPool.release(connection);
+    }
+}
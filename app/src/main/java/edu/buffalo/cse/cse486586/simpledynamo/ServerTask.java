@@ -1,76 +1,236 @@
 package edu.buffalo.cse.cse486586.simpledynamo;
 
-import android.content.Context;
-import android.os.AsyncTask;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StreamCorruptedException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-
-class ServerTask extends AsyncTask<ServerSocket, StringBuilder, Void> {
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking server: a single selector thread reads all peer connections and hands decoded payloads
+ * to the {@link Dispatcher}. Replies are written back on the connection the request came in on.
+ * A connection whose payloads the dispatcher had to park is not read again until its backlog drains.
+ */
+class ServerTask implements Runnable, Dispatcher.DrainListener {
     private static final String TAG = ServerTask.class.getName();
-    private final Context context;
-    public static final int TIMEOUT = 800;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // writers wait while a connection has this much queued, e.g. a streamed reply to a slow reader.
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    private static final long TIMEOUT = 100; // ms, to recheck whether the connection closed
+
+    private final Dispatcher dispatcher;
+    private final int port;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final List<byte[]> frames = new ArrayList<>();
+    // channels with queued writes, the selector thread registers their interest in OP_WRITE.
+    private final Queue<InboundChannel> wantWrite = new ConcurrentLinkedQueue<>();
+    // channels not read while the dispatcher is saturated, only touched by the selector thread.
+    private final List<InboundChannel> paused = new ArrayList<>();
+    private volatile Thread selectorThread;
+    private volatile Selector selector;
 
-    public ServerTask(Context context) {
-        this.context = context;
+    public ServerTask(Dispatcher dispatcher, int port) {
+        this.dispatcher = dispatcher;
+        this.port = port;
+        dispatcher.setDrainListener(this);
+    }
+
+    @Override
+    public void drained() {
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
     }
 
     @Override
-    protected Void doInBackground(ServerSocket... sockets) {
-        ServerSocket serverSocket = sockets[0];
-        String port = "0";
-        while (true) {
-            try (Socket socket = serverSocket.accept();
-                 BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                port = socket.getRemoteSocketAddress().toString();
-                socket.setSoTimeout(TIMEOUT);
-                StringBuilder total = new StringBuilder(200);
-                String line;
-                while ((line = br.readLine()) != null) {
-                    total.append(line);
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try (Selector selector = Selector.open();
+             ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            Log.d(TAG, "Listening on: " + port);
+            this.selector = selector;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                InboundChannel writer;
+                while ((writer = wantWrite.poll()) != null) {
+                    writer.writing = true;
+                    writer.updateInterest();
                 }
+                if (!paused.isEmpty() && !dispatcher.isSaturated()) {
+                    for (InboundChannel channel : paused) {
+                        channel.paused = false;
+                        channel.updateInterest();
+                    }
+                    paused.clear();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(selector, server);
+                            continue;
+                        }
+                        InboundChannel channel = (InboundChannel) key.attachment();
+                        if (key.isWritable() && channel.flush()) {
+                            channel.writing = false;
+                            channel.updateInterest();
+                        }
+                        if (key.isReadable()) {
+                            read(channel);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        Log.e(TAG, "ServerTask connection Exception at: " + key.channel(), e);
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "ServerTask Exception", e);
+        }
+    }
 
-                publishProgress(total);
+    private void accept(Selector selector, ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new InboundChannel(key));
+    }
 
-            } catch (UnknownHostException e) {
-                Log.e(TAG, "ServerTask UnknownHostException", e);
-            } catch (NullPointerException e) {
-                Log.e(TAG, "ServerTask NullPointerException", e);
-            } catch (SocketTimeoutException | StreamCorruptedException | EOFException e) {
-                Log.e(TAG, "ServerTask socket timeout at: " + port, e);
-            } catch (Exception e) {
-                Log.e(TAG, "ServerTask Exception", e);
+    private void read(InboundChannel channel) throws IOException {
+        readBuffer.clear();
+        int n = channel.socket.read(readBuffer);
+        if (n == -1) {
+            close(channel.key);
+            return;
+        }
+        readBuffer.flip();
+        channel.decoder.decode(readBuffer, frames);
+        boolean accepted = true;
+        for (byte[] frame : frames) {
+            Payload payload = PayloadCodec.decode(ByteBuffer.wrap(frame));
+            if (payload != null) {
+                accepted &= dispatcher.dispatch(payload, channel);
             }
         }
+        frames.clear();
+        if (!accepted && !channel.paused) {
+            channel.paused = true;
+            channel.updateInterest();
+            paused.add(channel);
+            // the backlog may have drained while this read was dispatched, before the channel was paused.
+            selector.wakeup();
+        }
     }
 
-    @Override
-    protected void onProgressUpdate(StringBuilder... values) {
+    private void close(SelectionKey key) {
+        key.cancel();
         try {
-            for (final StringBuilder payloadString : values) {
-                String json = payloadString.toString();
-                if (!json.isEmpty()) {
-                    final Payload payload = Payload.deserialize(json);
-                    if (payload != null) {
-                        new Thread(new Runnable() { // NOTE: we do not need AsyncTask here, because we do not interact with UI
-                            @Override               // use a thread pool/Executor?
-                            public void run() {
-                                Dynamo.get(context).handle(payload);
-                            }
-                        }).start();
+            key.channel().close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close channel", e);
+        }
+    }
+
+    /**
+     * An accepted connection. Any thread may write to it, whatever the socket does not take right away
+     * is queued and flushed by the selector thread when the socket becomes writable.
+     */
+    private class InboundChannel implements PeerChannel {
+        private final SelectionKey key;
+        private final SocketChannel socket;
+        private final Frame.Decoder decoder = new Frame.Decoder();
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>(); // guarded by this
+        private int pendingBytes = 0; // guarded by this
+        // interest flags, only touched by the selector thread.
+        private boolean writing = false;
+        private boolean paused = false;
+
+        private InboundChannel(SelectionKey key) {
+            this.key = key;
+            this.socket = (SocketChannel) key.channel();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return key.isValid() && socket.isOpen();
+        }
+
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        @Override
+        public void write(Payload payload) throws IOException {
+            ByteBuffer body = PayloadCodec.encode(payload);
+            if (body == null) {
+                return;
+            }
+            ByteBuffer[] frame = Frame.encode(body);
+            synchronized (this) {
+                while (pendingBytes > MAX_PENDING_BYTES && isOpen() && Thread.currentThread() != selectorThread) {
+                    try {
+                        wait(TIMEOUT);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while waiting to write", e);
+                    }
+                }
+                boolean idle = pending.isEmpty();
+                for (ByteBuffer buffer : frame) {
+                    pending.add(buffer);
+                    pendingBytes += buffer.remaining();
+                }
+                // if something was queued already the selector thread is waiting to flush it.
+                if (idle && !flush()) {
+                    wantWrite.add(this);
+                    key.selector().wakeup();
+                }
+            }
+        }
+
+        // writes as much as the socket takes, true if nothing is left.
+        private synchronized boolean flush() throws IOException {
+            try {
+                while (!pending.isEmpty()) {
+                    ByteBuffer buffer = pending.peek();
+                    pendingBytes -= socket.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return false;
                     }
+                    pending.poll();
                 }
+                return true;
+            } finally {
+                notifyAll();
             }
-        } catch (Exception e) {
-            Log.e(TAG, "ServerTask onProgressUpdate Exception", e);
         }
     }
-}
\ No newline at end of file
+}
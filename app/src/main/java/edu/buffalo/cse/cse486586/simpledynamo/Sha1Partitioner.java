@@ -0,0 +1,50 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Placement of the spec: keys are ordered by their SHA-1 in hex. The token is the first 8 bytes of the hash,
+ * which orders the same way without building the hex string.
+ */
+public class Sha1Partitioner implements Partitioner {
+    private static final String TAG = Sha1Partitioner.class.getName();
+
+    // MessageDigest.getInstance is a provider lookup, each thread keeps and resets its own digest.
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(TAG, "Should not happen!.", e);
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    Sha1Partitioner() {
+    }
+
+    public static byte[] digest(String input) {
+        return SHA1.get().digest(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public long token(String key) {
+        byte[] sha1Hash = digest(key);
+        long token = 0;
+        for (int i = 0; i < 8; i++) {
+            token = (token << 8) | (sha1Hash[i] & 0xFF);
+        }
+        return token;
+    }
+
+    @Override
+    public String toString() {
+        return "sha1";
+    }
+}
@@ -6,16 +6,32 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
-import static android.database.sqlite.SQLiteDatabase.CONFLICT_REPLACE;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SimpleDynamoDB extends SQLiteOpenHelper {
     private static final String TAG = SimpleDynamoDB.class.getName();
     private static SimpleDynamoDB INSTANCE = null;
 
     public static final String TABLE = "kv_store";
-    public static final int DB_VERSION = 1;
+    // writes for nodes that were down, replayed when they are back.
+    public static final String HINTS = "hints";
+    public static final int DB_VERSION = 4;
+    // bound of the keys of one query, SQLite allows 999 parameters
+    public static final int MAX_KEYS = 512;
+    // returned by write when the stored row is as new or newer
+    public static final long NOT_WRITTEN = -1;
+
+    private static final String WRITE = "INSERT OR REPLACE INTO " + TABLE + " (key,value,version,updated,leaf) SELECT ?,?,?,?,?"
+            + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE + " WHERE key = ? AND version >= ?)";
+
+    // last value of the updated column, -1 until read from the table
+    private final AtomicLong updated = new AtomicLong(-1);
 
     private SimpleDynamoDB(Context context) {
         super(context, TABLE, null, DB_VERSION);
@@ -32,22 +48,116 @@ public class SimpleDynamoDB extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE IF NOT EXISTS kv_store (key TEXT PRIMARY KEY, value TEXT, version INTEGER)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS kv_store (key TEXT PRIMARY KEY, value TEXT, version INTEGER, updated INTEGER DEFAULT 0, leaf INTEGER)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS kv_store_updated ON kv_store (updated)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS kv_store_leaf ON kv_store (leaf)");
+        createHints(db);
         Log.w(TAG, "Created DB");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS kv_store");
-        onCreate(db);
+        if (oldVersion < 2) {
+            createHints(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE kv_store ADD COLUMN updated INTEGER DEFAULT 0");
+            db.execSQL("CREATE INDEX IF NOT EXISTS kv_store_updated ON kv_store (updated)");
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE kv_store ADD COLUMN leaf INTEGER");
+            db.execSQL("CREATE INDEX IF NOT EXISTS kv_store_leaf ON kv_store (leaf)");
+            // the leaf is a hash of the key, SQLite cannot compute it
+            try (Cursor cursor = db.rawQuery("SELECT key from kv_store", null);
+                 SQLiteStatement statement = db.compileStatement("UPDATE kv_store SET leaf = ? WHERE key = ?")) {
+                while (cursor.moveToNext()) {
+                    statement.bindLong(1, MerkleTree.leaf(cursor.getString(0)));
+                    statement.bindString(2, cursor.getString(0));
+                    statement.executeUpdateDelete();
+                }
+            }
+        }
+    }
+
+    private void createHints(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS hints (id INTEGER PRIMARY KEY AUTOINCREMENT, node TEXT, key TEXT, value TEXT, version INTEGER)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS hints_node ON hints (node, id)");
     }
 
     public int drop() {
         return getWritableDatabase().delete(TABLE, null, null);
     }
 
-    public long insert(ContentValues keyValue) {
-        return getWritableDatabase().insertWithOnConflict(TABLE, null, keyValue, CONFLICT_REPLACE);
+    /**
+     * Writes the row unless the stored one has the same or a newer version, which the statement checks itself.
+     * Returns the version it replaced, 0 for a new key, or {@link #NOT_WRITTEN}. The replaced version is exact
+     * only inside a transaction. A null value deletes key, see tombstone.
+     */
+    public long write(String key, String value, long version) {
+        long previous = version(key);
+        if (previous >= version) {
+            return NOT_WRITTEN;
+        }
+        try (SQLiteStatement statement = getWritableDatabase().compileStatement(WRITE)) {
+            statement.bindString(1, key);
+            if (value == null) {
+                statement.bindNull(2);
+            } else {
+                statement.bindString(2, value);
+            }
+            statement.bindLong(3, version);
+            statement.bindLong(4, nextUpdated());
+            statement.bindLong(5, MerkleTree.leaf(key));
+            statement.bindString(6, key);
+            statement.bindLong(7, version);
+            return statement.executeUpdateDelete() > 0 ? previous : NOT_WRITTEN;
+        }
+    }
+
+    // version of the row of key, 0 if there is none
+    public long version(String key) {
+        try (Cursor cursor = getWritableDatabase().rawQuery("SELECT version from " + TABLE + " where key = ?", new String[]{key})) {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    /**
+     * Position of the last local write: every write stamps its row with a strictly increasing "updated",
+     * the wall clock in ms unless that went backwards. Peers remember it to later ask for newer rows only.
+     */
+    public long lastUpdated() {
+        long last = updated.get();
+        if (last < 0) {
+            try (Cursor cursor = getWritableDatabase().rawQuery("SELECT max(updated) from " + TABLE, null)) {
+                last = cursor.moveToNext() ? cursor.getLong(0) : 0;
+            }
+            updated.compareAndSet(-1, last);
+            last = updated.get();
+        }
+        return last;
+    }
+
+    private long nextUpdated() {
+        while (true) {
+            long last = lastUpdated();
+            long next = Math.max(System.currentTimeMillis(), last + 1);
+            if (updated.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    // rows written at or after the given position, deleted keys included
+    public Cursor updatedSince(long since) {
+        return getWritableDatabase().rawQuery("SELECT key,value,version from " + TABLE + " where updated >= ?", new String[]{String.valueOf(since)});
+    }
+
+    /**
+     * Deletes key by writing a row without value, so the delete has a version and replicas
+     * that missed it do not bring the key back. Readers skip these rows.
+     */
+    public long tombstone(String key, long version) {
+        return write(key, null, version);
     }
 
     public long delete(String key) {
@@ -58,10 +168,56 @@ public class SimpleDynamoDB extends SQLiteOpenHelper {
         return getWritableDatabase().rawQuery("SELECT key,value,version from " + TABLE + " where key = ?", new String[]{key});
     }
 
+    /**
+     * Up to limit rows in key order after the key after, or from the start if it is null, whose key starts
+     * with prefix, if not null. Deleted keys included.
+     */
+    public Cursor scan(String prefix, String after, int limit) {
+        StringBuilder where = new StringBuilder("1");
+        List<String> args = new ArrayList<>(4);
+        if (after != null) {
+            where.append(" and key > ?");
+            args.add(after);
+        }
+        if (prefix != null && !prefix.isEmpty()) {
+            where.append(" and key >= ? and substr(key, 1, length(?)) = ?");
+            args.add(prefix);
+            args.add(prefix);
+            args.add(prefix);
+            char last = prefix.charAt(prefix.length() - 1);
+            if (last < 0x7f) {
+                // upper bound for the index, exact as far as the last character is ASCII
+                where.append(" and key < ?");
+                args.add(prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+            }
+        }
+        return getWritableDatabase().rawQuery("SELECT key,value,version from " + TABLE + " where " + where
+                + " order by key limit " + limit, args.toArray(new String[args.size()]));
+    }
+
+    // at most MAX_KEYS keys, deleted keys included
+    public Cursor query(Collection<String> keys) {
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++) {
+            in.append(i == 0 ? "?" : ",?");
+        }
+        return getWritableDatabase().rawQuery("SELECT key,value,version from " + TABLE + " where key in (" + in + ")", keys.toArray(new String[keys.size()]));
+    }
+
+    // rows of one merkle tree leaf in all key ranges, deleted keys included
+    public Cursor leaf(int leaf) {
+        return getWritableDatabase().rawQuery("SELECT key,value,version from " + TABLE + " where leaf = ?", new String[]{String.valueOf(leaf)});
+    }
+
+    // including deleted keys, see tombstone
     public Cursor all() {
         return getWritableDatabase().rawQuery("SELECT key,value,version from " + TABLE, null);
     }
 
+    public Cursor values() {
+        return getWritableDatabase().rawQuery("SELECT key,value,version from " + TABLE + " where value is not null", null);
+    }
+
     public long count() {
         long count = 0;
         try (Cursor cursor = getWritableDatabase().rawQuery("SELECT count(*) from " + TABLE, null)) {
@@ -72,7 +228,38 @@ public class SimpleDynamoDB extends SQLiteOpenHelper {
         return count;
     }
 
-    public Cursor version(String key) {
-        return getWritableDatabase().rawQuery("SELECT max(version) from " + TABLE + " where key = ?", new String[]{key});
+    public long addHint(String node, String key, String value, long version) {
+        ContentValues hint = new ContentValues(4);
+        hint.put("node", node);
+        hint.put("key", key);
+        hint.put("value", value);
+        hint.put("version", version);
+        return getWritableDatabase().insert(HINTS, null, hint);
     }
+
+    // oldest first
+    public Cursor hints(String node, int limit) {
+        return getWritableDatabase().rawQuery("SELECT id,key,value,version from " + HINTS + " where node = ? order by id limit " + limit, new String[]{node});
+    }
+
+    public int deleteHints(String node, long upToId) {
+        return getWritableDatabase().delete(HINTS, "node = ? and id <= ?", new String[]{node, String.valueOf(upToId)});
+    }
+
+    public void beginTransaction() {
+        getWritableDatabase().beginTransaction();
+    }
+
+    public void setTransactionSuccessful() {
+        getWritableDatabase().setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        getWritableDatabase().endTransaction();
+    }
+
+    public Cursor hintedNodes() {
+        return getWritableDatabase().rawQuery("SELECT distinct node from " + HINTS, null);
+    }
+
 }
@@ -4,6 +4,11 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class SimpleDynamoProvider extends ContentProvider {
 	private static final String TAG = SimpleDynamoProvider.class.getName();
@@ -12,7 +17,7 @@ public class SimpleDynamoProvider extends ContentProvider {
 
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
-		return (int) dynamo.delete(selection);
+		return dynamo.deleteAsync(selection).join();
 	}
 
 	@Override
@@ -22,10 +27,22 @@ public class SimpleDynamoProvider extends ContentProvider {
 
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
-		dynamo.insert(values);
+		dynamo.insertAsync(values.getAsString("key"), values.getAsString("value")).join();
 		return null;
 	}
 
+	/**
+	 * Writes all rows in about one round trip, returns how many reached the write quorum.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		Map<String, String> rows = new LinkedHashMap<>();
+		for (ContentValues row : values) {
+			rows.put(row.getAsString("key"), row.getAsString("value"));
+		}
+		return dynamo.insertAllAsync(rows).join();
+	}
+
 	@Override
 	public boolean onCreate() {
 		this.dynamo = Dynamo.get(getContext());
@@ -35,7 +52,56 @@ public class SimpleDynamoProvider extends ContentProvider {
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
-		return dynamo.query(selection);
+		if (selection == null && selectionArgs != null) {
+			// the keys to read, in one batch
+			return dynamo.queryAsync(Arrays.asList(selectionArgs)).join();
+		}
+		if (("*".equals(selection) || "@".equals(selection)) && selectionArgs != null) {
+			// one page of a scan: {prefix, key to start after, page size}, empty or missing for none
+			String pageSize = arg(selectionArgs, 2);
+			return dynamo.scanAsync(selection, arg(selectionArgs, 0), arg(selectionArgs, 1),
+					pageSize == null ? Dynamo.MAX_PAGE_SIZE : Integer.parseInt(pageSize)).join();
+		}
+		return dynamo.queryAsync(selection).join();
+	}
+
+	private static String arg(String[] args, int i) {
+		return args.length > i && args[i] != null && !args[i].isEmpty() ? args[i] : null;
+	}
+
+	/**
+	 * Membership changes: "join" or "leave" with the port of the node as arg. Returns the resulting ring.
+	 * "stats" returns the counters of the requests waiting for replies and how often reads were paused.
+	 */
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		switch (method) {
+			case "stats":
+				return stats();
+			case "join":
+				dynamo.join(arg);
+				break;
+			case "leave":
+				dynamo.leave(arg);
+				break;
+			default:
+				return null;
+		}
+		Bundle result = new Bundle();
+		result.putString("nodes", DynamoRing.join(DynamoRing.nodes()));
+		result.putLong("epoch", DynamoRing.epoch());
+		return result;
+	}
+
+	private Bundle stats() {
+		PendingRequests pending = dynamo.pending();
+		Bundle stats = new Bundle();
+		stats.putLong("pending", pending.size());
+		stats.putLong("late", pending.late());
+		stats.putLong("orphaned", pending.orphaned());
+		stats.putLong("expired", pending.expired());
+		stats.putLong("stalls", dynamo.dispatcher().stalls());
+		return stats;
 	}
 
 	@Override
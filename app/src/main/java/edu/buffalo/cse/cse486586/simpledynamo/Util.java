@@ -1,29 +1,25 @@
 package edu.buffalo.cse.cse486586.simpledynamo;
 
-import android.util.Log;
-
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
-
 public class Util {
-    private static final String TAG = Util.class.getName();
     public static final String ALL = "*";
     public static final String LOCAL = "@";
 
-    public static String genHash(String input) {
-        try {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            byte[] sha1Hash = sha1.digest(input.getBytes());
-            Formatter formatter = new Formatter();
-            for (byte b : sha1Hash) {
-                formatter.format("%02x", b);
+    /**
+     * Orders keys the way SQLite's default BINARY collation orders them on UTF-8: by code point.
+     * String.compareTo differs for characters outside the basic multilingual plane.
+     */
+    public static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return ca < cb ? -1 : 1;
             }
-            return formatter.toString();
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "Should not happen!.", e);
-            System.exit(1);
-            return "";
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
         }
+        return Integer.compare(a.length() - i, b.length() - j); // the one with characters left is longer
     }
 }
@@ -0,0 +1,72 @@
+package edu.buffalo.cse.cse486586.simpledynamo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replication position per peer: the peer's {@link SimpleDynamoDB#lastUpdated()} as last heard in its heartbeats.
+ * Saved every few seconds, so after a restart this node asks each peer only for the rows it wrote since then,
+ * and catching up costs as much as the outage, not the data set.
+ */
+class Watermarks {
+    private static final String TAG = Watermarks.class.getName();
+    private static final String PREFERENCES = "dynamo_watermarks";
+    private static final long SAVE_INTERVAL = 5 * 1000; // ms
+    // asked for on top, positions count ms and the last save may be this old at a crash.
+    private static final long MARGIN = 2 * SAVE_INTERVAL;
+
+    private final SharedPreferences preferences;
+    private final Map<String, Long> saved; // as of the start of this process
+    private final Map<String, Long> positions = new HashMap<>(); // guarded by this
+    private long savedAt = 0; // guarded by this
+
+    public Watermarks(Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        Map<String, Long> saved = new HashMap<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                saved.put(entry.getKey(), (Long) entry.getValue());
+            }
+        }
+        this.saved = Collections.unmodifiableMap(saved);
+        this.positions.putAll(saved);
+        Log.d(TAG, "Watermarks: " + saved);
+    }
+
+    /**
+     * True on the first start, nothing was saved before.
+     */
+    public boolean isEmpty() {
+        return saved.isEmpty();
+    }
+
+    /**
+     * Position to catch up from with peer after a restart, 0 for everything.
+     */
+    public long recoverySince(String peer) {
+        Long position = saved.get(peer);
+        return position == null ? 0 : Math.max(0, position - MARGIN);
+    }
+
+    public synchronized void advance(String peer, long position) {
+        Long current = positions.get(peer);
+        if (current != null && current >= position) {
+            return;
+        }
+        positions.put(peer, position);
+        long now = System.currentTimeMillis();
+        if (now - savedAt >= SAVE_INTERVAL) {
+            SharedPreferences.Editor editor = preferences.edit();
+            for (Map.Entry<String, Long> entry : positions.entrySet()) {
+                editor.putLong(entry.getKey(), entry.getValue());
+            }
+            editor.apply();
+            savedAt = now;
+        }
+    }
+}